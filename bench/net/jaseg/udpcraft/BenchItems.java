@@ -0,0 +1,247 @@
+package net.jaseg.udpcraft;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.enchantments.EnchantmentTarget;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.BookMeta;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/* Representative item stacks for benchmarks that run without a Minecraft server.
+ *
+ * Real ItemMeta lives in CraftBukkit, so this installs a stand-in Server whose ItemFactory hands out map backed metas
+ * that serialize() the same keys CraftMetaItem does for the fields we use, and registers the handful of enchantments
+ * the stacks need. That is enough for ItemStackCodec's binary format, which all of these stacks use. The YAML fallback
+ * needs the real thing. */
+public class BenchItems {
+	public static enum Kind { PLAIN, ENCHANTED, BOOK, NAMED }
+
+	public static ItemStack create(Kind kind) {
+		ItemStack stack;
+		switch (kind) {
+		case PLAIN:
+			return new ItemStack(Material.COBBLESTONE, 64);
+
+		case ENCHANTED:
+			stack = new ItemStack(Material.DIAMOND_PICKAXE, 1, (short)117);
+			ItemMeta tool = stack.getItemMeta();
+			tool.addEnchant(Enchantment.getByName("DIG_SPEED"), 5, true);
+			tool.addEnchant(Enchantment.getByName("DURABILITY"), 3, true);
+			tool.addEnchant(Enchantment.getByName("MENDING"), 1, true);
+			stack.setItemMeta(tool);
+			return stack;
+
+		case BOOK:
+			stack = new ItemStack(Material.WRITTEN_BOOK, 1);
+			BookMeta book = (BookMeta)stack.getItemMeta();
+			book.setTitle("Collected Works");
+			book.setAuthor("jaseg");
+			List<String> pages = new ArrayList<String>();
+			for (int i=0; i<50; i++)
+				pages.add("Page "+i+". Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor "
+						+ "incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud "
+						+ "exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.");
+			book.setPages(pages);
+			stack.setItemMeta(book);
+			return stack;
+
+		case NAMED:
+			stack = new ItemStack(Material.IRON_INGOT, 32);
+			ItemMeta meta = stack.getItemMeta();
+			meta.setDisplayName("§6Shiny Ingot");
+			meta.setLore(Arrays.asList("§7Smelted with care", "§7in the nether", "§8#4711"));
+			stack.setItemMeta(meta);
+			return stack;
+		}
+		throw new IllegalArgumentException("Unknown kind "+kind);
+	}
+
+	private static final Object NONE = new Object();
+
+	private static abstract class Stub implements InvocationHandler {
+		abstract Object call(String name, Object args[]);
+
+		public Object invoke(Object proxy, Method m, Object args[]) {
+			Object out = call(m.getName(), args);
+			if (out != NONE)
+				return out;
+			Class<?> t = m.getReturnType();
+			if (t == boolean.class)
+				return false;
+			if (t == int.class || t == short.class || t == long.class || t == byte.class)
+				return 0;
+			if (List.class.isAssignableFrom(t))
+				return new ArrayList<Object>();
+			if (Map.class.isAssignableFrom(t))
+				return new LinkedHashMap<Object, Object>();
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> iface, InvocationHandler h) {
+		return (T)Proxy.newProxyInstance(BenchItems.class.getClassLoader(), new Class<?>[] { iface }, h);
+	}
+
+	private static final ItemFactory FACTORY = proxy(ItemFactory.class, new Stub() {
+		Object call(String name, Object args[]) {
+			switch (name) {
+			case "getItemMeta": return meta(args[0] == Material.WRITTEN_BOOK, new HashMap<String, Object>());
+			case "isApplicable": return true;
+			case "equals": return args.length == 2 ? Objects.equals(args[0], args[1]) : NONE;
+			case "asMetaFor": return args[0];
+			default: return NONE;
+			}
+		}
+	});
+
+	/* getFoo, setFoo and hasFoo all work on field "Foo" */
+	private static ItemMeta meta(boolean book, Map<String, Object> fields) {
+		MetaStub h = new MetaStub(book, fields);
+		return (ItemMeta)Proxy.newProxyInstance(BenchItems.class.getClassLoader(),
+				new Class<?>[] { BookMeta.class }, h);
+	}
+
+	private static class MetaStub extends Stub {
+		final boolean book;
+		final Map<String, Object> f;
+
+		MetaStub(boolean book, Map<String, Object> f) {
+			this.book = book;
+			this.f = f;
+		}
+
+		@SuppressWarnings("unchecked")
+		Object call(String name, Object args[]) {
+			switch (name) {
+			case "clone":
+				Map<String, Object> copy = new HashMap<String, Object>(f);
+				if (f.containsKey("Enchants"))
+					copy.put("Enchants", new LinkedHashMap<Enchantment, Integer>((Map<Enchantment, Integer>)f.get("Enchants")));
+				return meta(book, copy);
+			case "equals":
+				return args[0] != null && Proxy.isProxyClass(args[0].getClass())
+						&& Proxy.getInvocationHandler(args[0]) instanceof MetaStub
+						&& f.equals(((MetaStub)Proxy.getInvocationHandler(args[0])).f);
+			case "hashCode":
+				return f.hashCode();
+			case "toString":
+				return f.toString();
+			case "serialize":
+				Map<String, Object> out = new LinkedHashMap<String, Object>();
+				out.put("meta-type", book ? "BOOK_SIGNED" : "UNSPECIFIC");
+				for (String key : f.keySet())
+					out.put(SERIALIZED_KEYS.get(key), f.get(key));
+				return out;
+			case "addEnchant":
+				((Map<Enchantment, Integer>)f.computeIfAbsent("Enchants", k -> new LinkedHashMap<Enchantment, Integer>()))
+						.put((Enchantment)args[0], (Integer)args[1]);
+				return true;
+			case "getPageCount":
+				return f.containsKey("Pages") ? ((List<String>)f.get("Pages")).size() : 0;
+			case "setPages":
+				f.put("Pages", new ArrayList<String>(args[0] instanceof String[] ? Arrays.asList((String[])args[0]) : (List<String>)args[0]));
+				return null;
+			}
+			String field = name.substring(3);
+			if (name.startsWith("set")) {
+				if (args[0] == null)
+					f.remove(field);
+				else
+					f.put(field, args[0]);
+				return name.equals("setTitle") ? true : null;
+			}
+			if (name.startsWith("has"))
+				return f.containsKey(field);
+			if (name.startsWith("get") && f.containsKey(field))
+				return f.get(field);
+			return NONE;
+		}
+	}
+
+	private static final Map<String, String> SERIALIZED_KEYS = new HashMap<String, String>();
+	static {
+		SERIALIZED_KEYS.put("DisplayName", "display-name");
+		SERIALIZED_KEYS.put("Lore", "lore");
+		SERIALIZED_KEYS.put("Enchants", "enchants");
+		SERIALIZED_KEYS.put("Title", "title");
+		SERIALIZED_KEYS.put("Author", "author");
+		SERIALIZED_KEYS.put("Pages", "pages");
+	}
+
+	private static class BenchEnchantment extends Enchantment {
+		private final String name;
+
+		BenchEnchantment(int id, String name) {
+			super(id);
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMaxLevel() {
+			return 5;
+		}
+
+		public int getStartLevel() {
+			return 1;
+		}
+
+		public EnchantmentTarget getItemTarget() {
+			return EnchantmentTarget.ALL;
+		}
+
+		public boolean isTreasure() {
+			return false;
+		}
+
+		public boolean isCursed() {
+			return false;
+		}
+
+		public boolean conflictsWith(Enchantment other) {
+			return false;
+		}
+
+		public boolean canEnchantItem(ItemStack item) {
+			return true;
+		}
+	}
+
+	/* Last, everything above has to be initialized by now */
+	static {
+		if (Bukkit.getServer() == null)
+			Bukkit.setServer(proxy(Server.class, new Stub() {
+				Object call(String name, Object args[]) {
+					switch (name) {
+					case "getItemFactory": return FACTORY;
+					case "getLogger": return Logger.getLogger("BenchItems");
+					case "getName": case "getVersion": case "getBukkitVersion": return "BenchItems";
+					default: return NONE;
+					}
+				}
+			}));
+		String names[] = { "DAMAGE_ALL", "DIG_SPEED", "DURABILITY", "MENDING" };
+		int ids[] = { 16, 32, 34, 70 };
+		for (int i=0; i<names.length; i++)
+			if (Enchantment.getByName(names[i]) == null)
+				Enchantment.registerEnchantment(new BenchEnchantment(ids[i], names[i]));
+	}
+}
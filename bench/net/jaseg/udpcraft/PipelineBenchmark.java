@@ -0,0 +1,129 @@
+package net.jaseg.udpcraft;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* JMH benchmarks for everything an item goes through between two servers, on the stacks from BenchItems:
+ *
+ *   serializeStack:  ItemStack to payload bytes
+ *   sign:            payload to signed message
+ *   unsign:          signed message back to payload, MAC check included
+ *   unwrapItemStack: payload back to ItemStack
+ *   roundTrip:       all of the above, the way ConnectionMux sees it
+ *
+ * cacheSize is ItemStackCodec's, 0 measures the codec itself and 256 what a homogeneous item stream gets out of the
+ * caches. The caches are shared by all threads, so the interesting numbers are the multi-threaded ones. main() runs
+ * everything at 1, 2, 4 and 8 threads (or whatever thread counts it is given) with the GC profiler, which adds
+ * gc.alloc.rate.norm, bytes allocated per operation. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+	@Param({"PLAIN", "ENCHANTED", "BOOK", "NAMED"})
+	public BenchItems.Kind stack;
+
+	private ItemStack item;
+	private byte payload[];
+	private byte signed[];
+
+	/* Everything in here is process wide */
+	@State(Scope.Benchmark)
+	public static class Codec {
+		@Param({"0", "256"})
+		public int cacheSize;
+
+		final Store store = new Store();
+
+		@Setup
+		public void setUp() {
+			ItemStackCodec.setCacheSize(cacheSize);
+		}
+	}
+
+	/* Never runs out of serials and never remembers them, so the same message can be verified over and over */
+	private static class Store implements SignatureDataStore {
+		private final KeyParameter secret = new KeyParameter("benchmark secret, do not use".getBytes());
+		private final AtomicInteger serial = new AtomicInteger();
+
+		public KeyParameter getSecret() {
+			return secret;
+		}
+
+		public int nextSerial() {
+			return serial.getAndIncrement();
+		}
+
+		public void voidSerial(int serial) {
+		}
+	}
+
+	@Setup
+	public void setUp(Codec codec) {
+		item = BenchItems.create(stack);
+		payload = ItemStackCodec.encode(item);
+		signed = ItemMessage.sign(codec.store, payload);
+	}
+
+	@Benchmark
+	public byte[] serializeStack(Codec codec) {
+		return new ItemMessage(codec.store, "bench", item).serializeStack();
+	}
+
+	@Benchmark
+	public byte[] sign(Codec codec) {
+		return ItemMessage.sign(codec.store, payload);
+	}
+
+	@Benchmark
+	public byte[] unsign(Codec codec) {
+		return ItemMessage.unsign(codec.store, signed);
+	}
+
+	@Benchmark
+	public ItemStack unwrapItemStack(Codec codec) {
+		return ItemMessage.unwrapItemStack(payload);
+	}
+
+	@Benchmark
+	public ItemMessage roundTrip(Codec codec) {
+		byte msg[] = new ItemMessage(codec.store, "bench", item).serialize();
+		return ItemMessage.deserialize(null, codec.store, msg);
+	}
+
+	public static void main(String args[]) throws RunnerException {
+		int threads[] = { 1, 2, 4, 8 };
+		if (args.length > 0) {
+			threads = new int[args.length];
+			for (int i=0; i<args.length; i++)
+				threads[i] = Integer.parseInt(args[i]);
+		}
+		for (int t : threads) {
+			new Runner(new OptionsBuilder()
+					.include(PipelineBenchmark.class.getSimpleName())
+					.threads(t)
+					.addProfiler(GCProfiler.class)
+					.build()).run();
+		}
+	}
+}
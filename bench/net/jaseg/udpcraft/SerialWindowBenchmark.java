@@ -0,0 +1,80 @@
+package net.jaseg.udpcraft;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Issuing and voiding serials from several threads at once, all on one shared SerialWindow. Run with -t 1, -t 2 and so
+ * on up to the number of cores. The total throughput of lockFree should grow with the threads, locked is what the
+ * plugin did before and doesn't.
+ *
+ *   lockFree: issue and void a serial
+ *   locked:   the same, synchronized on the window like nextSerial and voidSerial used to be
+ *
+ * A purger thread runs expire() in the background the way the plugin's timer does, so the window keeps moving. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialWindowBenchmark {
+	private static final long BUCKET = 1000;
+	private static final long LIFETIME = 60000;
+
+	private SerialWindow window;
+	private Thread purger;
+
+	@Setup
+	public void setUp() {
+		window = new SerialWindow(0, BUCKET, LIFETIME);
+		purger = new Thread(() -> {
+			try {
+				while (true) {
+					window.expire(System.currentTimeMillis());
+					Thread.sleep(1);
+				}
+			} catch (InterruptedException ex) {
+			}
+		});
+		purger.setDaemon(true);
+		purger.start();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		purger.interrupt();
+		purger.join();
+	}
+
+	@Benchmark
+	public int lockFree() {
+		long now = System.currentTimeMillis();
+		int serial = window.issue(now);
+		window.voidSerial(serial, now);
+		return serial;
+	}
+
+	@Benchmark
+	public int locked() {
+		long now = System.currentTimeMillis();
+		int serial;
+		synchronized (window) {
+			serial = window.issue(now);
+		}
+		synchronized (window) {
+			window.voidSerial(serial, now);
+		}
+		return serial;
+	}
+}
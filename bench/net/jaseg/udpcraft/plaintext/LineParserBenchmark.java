@@ -0,0 +1,126 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.jaseg.udpcraft.ItemListener;
+import net.jaseg.udpcraft.ItemMessage;
+import net.jaseg.udpcraft.Portal;
+import net.jaseg.udpcraft.PubSubHandler;
+
+/* JMH benchmarks for the text protocol's receive path, fed with a read buffer worth of pipelined commands the way a
+ * subscribe storm looks to a single connection. Run with -prof gc to see the allocation side of things.
+ *
+ *   scan:     CRLF segmentation only
+ *   dispatch: segmentation plus verb dispatch and argument parsing in SMTPHandler
+ *   legacy:   the old per-char StringBuilder and trim().split(" ") parser, for comparison */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParserBenchmark {
+	@Param({"SUBSCRIBE", "SUBMIT"})
+	public String workload;
+
+	private byte input[];
+	private ByteBuffer buf;
+	private LineBufferThing scanner;
+	private LineBufferThing dispatcher;
+	private int lines;
+
+	private static class NullConnection implements SMTPHandler.ConnectionHandler {
+		public void close() {}
+		public void reply(String r) {}
+		public void reply(ByteBuffer r) {}
+		public boolean offer(String r) { return true; }
+		public boolean offer(ByteBuffer r) { return true; }
+	}
+
+	private static class NullPubSub implements PubSubHandler {
+		public void subscribe(String portal, String password, ItemListener listener) {}
+		public void unsubscribe(String portal, ItemListener listener) {}
+		public boolean emitMessage(Portal portal, ItemMessage msg) { return false; }
+		public void submit(String portal, byte msg[]) {}
+	}
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; sb.length() < 8*1024; i++) {
+			if (workload.equals("SUBSCRIBE"))
+				sb.append("SUBSCRIBE portal").append(i).append(" hunter2\r\n");
+			else
+				sb.append("SUBMIT portal").append(i)
+					.append(" Ym9ndXMgaXRlbSBwYXlsb2FkIHRoYXQgaXMgbm90IGFjdHVhbGx5IGEgc2lnbmVkIHN0YWNrIGJ1dCBjbG9zZSBlbm91Z2g=\r\n");
+		}
+		input = sb.toString().getBytes(StandardCharsets.US_ASCII);
+		buf = ByteBuffer.allocate(input.length);
+		scanner = new LineBufferThing(new LineBufferThing.LineHandler() {
+			public void handleLine(ByteBuffer line) {
+				lines++;
+			}
+		});
+		dispatcher = new LineBufferThing(new SMTPHandler(Logger.getAnonymousLogger(), new NullConnection(), new NullPubSub()));
+	}
+
+	private ByteBuffer fill() {
+		buf.clear();
+		buf.put(input);
+		buf.flip();
+		return buf;
+	}
+
+	@Benchmark
+	public int scan() throws IOException {
+		lines = 0;
+		scanner.readLine(fill());
+		return lines;
+	}
+
+	@Benchmark
+	public void dispatch() throws IOException {
+		dispatcher.readLine(fill());
+	}
+
+	@Benchmark
+	public void legacy(Blackhole bh) {
+		StringBuilder sb = new StringBuilder();
+		char last = 0;
+		for (byte b : input) {
+			char c = (char)b;
+			if (last == '\r' && c == '\n') {
+				String line = sb.substring(0, sb.length()-1);
+				sb = new StringBuilder();
+				String args[] = line.trim().split(" ");
+				if (args[0].equals("SUBSCRIBE"))
+					bh.consume(args[1]);
+				else if (args[0].equals("UNSUBSCRIBE"))
+					bh.consume(args[1]);
+				else if (args[0].equals("SUBMIT"))
+					bh.consume(Base64.getDecoder().decode(args[2]));
+			} else {
+				sb.append(c);
+			}
+			last = c;
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jaseg.udpcraft.ItemListener;
+import net.jaseg.udpcraft.ItemMessage;
+import net.jaseg.udpcraft.Portal;
+import net.jaseg.udpcraft.PubSubHandler;
+import net.jaseg.udpcraft.Transport;
+
+/* Closed-loop load generator for the text protocol. Opens lots of loopback connections against a Server or
+ * ThreadedServer backed by a stub PubSubHandler. Every connection sends one command, waits for its reply and sends the
+ * next one, picking commands at random according to the configured mix. A QUIT makes the client reconnect, so the mix
+ * also controls connection churn. Independently of that a fan-out thread pushes synthetic ITEMs to everybody
+ * subscribed to a portal at a fixed rate.
+ *
+ * Reports command throughput, reply latency percentiles, ITEM delivery rate and how much the server threads
+ * allocated per second and per command. The allocation numbers come from com.sun.management.ThreadMXBean and only
+ * cover platform threads whose name starts with "UDPCraft", so they are meaningless for "threads" mode on a JVM with
+ * virtual threads.
+ *
+ * Usage: LoadGenerator [key=value...], e.g.
+ *
+ *   LoadGenerator connections=5000 mix=subscribe:2,submit:7,quit:1 items=20000 reactors=4
+ *
+ * Keys and defaults:
+ *   mode=selector       selector or threads
+ *   reactors=1          selector threads, selector mode only
+ *   connections=1000    concurrent client connections, mind ulimit -n
+ *   workers=2           client selector threads
+ *   portals=16          number of distinct portals commands and ITEMs go to
+ *   mix=subscribe:1,submit:8,quit:1
+ *   items=0             synthetic ITEMs per second, each one going to all subscribers of its portal
+ *   payload=256         size of SUBMIT and ITEM payloads in bytes before Base64
+ *   warmup=5 duration=10  in seconds */
+public class LoadGenerator {
+	private static final String COMMANDS[] = { "subscribe", "submit", "quit" };
+	private static final int SUBSCRIBE = 0, SUBMIT = 1, QUIT = 2;
+
+	private static volatile boolean measuring = false;
+	private static volatile boolean stopping = false;
+
+	/* Log-linear latency histogram, 32 linear sub-buckets per power of two, so values are off by at most ~3% */
+	static class Histogram {
+		private static final int SUB_BITS = 5;
+		private static final int SUB = 1<<SUB_BITS;
+		private final long counts[] = new long[64*SUB];
+		private long total = 0;
+
+		private static int bucket(long v) {
+			if (v < SUB)
+				return (int)v;
+			int e = 63 - Long.numberOfLeadingZeros(v);
+			return (e-SUB_BITS+1)*SUB + (int)((v >>> (e-SUB_BITS)) & (SUB-1));
+		}
+
+		private static long lowerBound(int b) {
+			if (b < SUB)
+				return b;
+			int e = b/SUB + SUB_BITS - 1;
+			return (long)(SUB + b%SUB) << (e-SUB_BITS);
+		}
+
+		void record(long v) {
+			counts[bucket(Math.max(v, 0))]++;
+			total++;
+		}
+
+		void add(Histogram other) {
+			for (int i=0; i<counts.length; i++)
+				counts[i] += other.counts[i];
+			total += other.total;
+		}
+
+		long percentile(double p) {
+			long target = (long)Math.ceil(p*total);
+			long seen = 0;
+			for (int i=0; i<counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target && seen > 0)
+					return lowerBound(i);
+			}
+			return 0;
+		}
+	}
+
+	/* Keeps track of who subscribed to what so the fan-out thread has somebody to send ITEMs to */
+	private static class StubPubSub implements PubSubHandler {
+		final Map<String, Set<ItemListener>> subs = new ConcurrentHashMap<String, Set<ItemListener>>();
+
+		public void subscribe(String portal, String password, ItemListener listener) {
+			subs.computeIfAbsent(portal, k -> new CopyOnWriteArraySet<ItemListener>()).add(listener);
+		}
+
+		public void unsubscribe(String portal, ItemListener listener) {
+			Set<ItemListener> s = subs.get(portal);
+			if (s == null || !s.remove(listener))
+				throw new IllegalArgumentException("Portal was not subscribed");
+		}
+
+		public void unsubscribeAll(ItemListener listener) {
+			for (Set<ItemListener> s : subs.values())
+				s.remove(listener);
+		}
+
+		public boolean emitMessage(Portal portal, ItemMessage msg) {
+			return false;
+		}
+
+		public void submit(String portal, byte msg[]) {}
+	}
+
+	/* Skips signing and YAML, we're measuring the network side here */
+	private static class SyntheticMessage extends ItemMessage {
+		private final byte payload[];
+
+		SyntheticMessage(String portal, byte payload[]) {
+			super(null, portal, null);
+			this.payload = payload;
+		}
+
+		public byte[] serialize() {
+			return payload;
+		}
+	}
+
+	private static class Client {
+		SocketChannel ch;
+		ByteBuffer in = ByteBuffer.allocate(64*1024);
+		boolean greeted = false;
+		boolean quitting = false;
+		long sentAt;
+	}
+
+	private static class Worker extends Thread {
+		final Histogram latency = new Histogram();
+		long commands = 0;
+		long errors = 0;
+		long items = 0;
+		long reconnects = 0;
+
+		private final Selector sel;
+		private final InetSocketAddress addr;
+		private final int cumulative[];
+		private final int nportals;
+		private final byte submitTail[];
+		private final Random rng = new Random();
+		private final List<Client> clients = new ArrayList<Client>();
+
+		Worker(int id, InetSocketAddress addr, int nconns, int cumulative[], int nportals, String b64) throws IOException {
+			super("LoadGenerator Worker "+id);
+			sel = Selector.open();
+			this.addr = addr;
+			this.cumulative = cumulative;
+			this.nportals = nportals;
+			submitTail = (" "+b64+"\r\n").getBytes();
+			for (int i=0; i<nconns; i++)
+				connect(new Client());
+		}
+
+		/* Non-blocking, a dropped SYN must not stall all other clients of this worker */
+		private void connect(Client c) throws IOException {
+			c.ch = SocketChannel.open();
+			c.ch.configureBlocking(false);
+			if (c.ch.connect(addr))
+				c.ch.register(sel, SelectionKey.OP_READ, c);
+			else
+				c.ch.register(sel, SelectionKey.OP_CONNECT, c);
+			c.in.clear();
+			c.greeted = false;
+			c.quitting = false;
+			clients.add(c);
+		}
+
+		private void send(Client c) throws IOException {
+			int r = rng.nextInt(cumulative[cumulative.length-1]);
+			int cmd = 0;
+			while (r >= cumulative[cmd])
+				cmd++;
+
+			String portal = "portal"+rng.nextInt(nportals);
+			ByteBuffer buf;
+			switch (cmd) {
+			case SUBSCRIBE:
+				buf = ByteBuffer.wrap(("SUBSCRIBE "+portal+"\r\n").getBytes());
+				break;
+			case SUBMIT:
+				byte head[] = ("SUBMIT "+portal).getBytes();
+				buf = ByteBuffer.allocate(head.length + submitTail.length);
+				buf.put(head).put(submitTail).flip();
+				break;
+			default:
+				buf = ByteBuffer.wrap("QUIT\r\n".getBytes());
+				c.quitting = true;
+			}
+
+			c.sentAt = System.nanoTime();
+			/* Commands are tiny, the socket buffer always takes them */
+			while (buf.hasRemaining())
+				c.ch.write(buf);
+		}
+
+		private void handleLine(Client c, ByteBuffer line) throws IOException {
+			byte b0 = line.get(line.position());
+			if (b0 == 'I') {
+				/* ITEM push, not a reply */
+				if (measuring)
+					items++;
+				return;
+			}
+
+			if (!c.greeted) {
+				c.greeted = true;
+				send(c);
+				return;
+			}
+
+			if (measuring) {
+				latency.record(System.nanoTime() - c.sentAt);
+				commands++;
+				if (b0 != '2')
+					errors++;
+			}
+			if (!c.quitting)
+				send(c);
+			/* After QUIT's 221 we wait for the server to hang up and reconnect from there */
+		}
+
+		public void run() {
+			try {
+				while (!stopping) {
+					sel.select(100);
+					Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Client c = (Client)key.attachment();
+						if (key.isConnectable()) {
+							c.ch.finishConnect();
+							key.interestOps(SelectionKey.OP_READ);
+							continue;
+						}
+						int nrd;
+						try {
+							nrd = c.ch.read(c.in);
+						} catch (IOException ex) {
+							nrd = -1;
+						}
+						if (nrd < 0) {
+							key.cancel();
+							c.ch.close();
+							clients.remove(c);
+							if (!c.quitting)
+								throw new IOException("Server hung up on us");
+							if (measuring)
+								reconnects++;
+							connect(c);
+							continue;
+						}
+
+						c.in.flip();
+						int start = c.in.position();
+						for (int i=start; i<c.in.limit(); i++) {
+							if (c.in.get(i) != '\n')
+								continue;
+							ByteBuffer line = c.in.duplicate();
+							line.position(start).limit(i);
+							handleLine(c, line);
+							start = i+1;
+						}
+						c.in.position(start);
+						c.in.compact();
+						if (!c.in.hasRemaining())
+							throw new IOException("Line too long");
+					}
+				}
+				for (Client c : clients)
+					c.ch.close();
+			} catch (IOException ex) {
+				System.err.println(getName()+": "+ex);
+			}
+		}
+	}
+
+	private static long serverAllocatedBytes() {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (ThreadInfo ti : mx.getThreadInfo(mx.getAllThreadIds())) {
+			if (ti != null && ti.getThreadName().startsWith("UDPCraft")) {
+				long n = mx.getThreadAllocatedBytes(ti.getThreadId());
+				if (n > 0)
+					total += n;
+			}
+		}
+		return total;
+	}
+
+	public static void main(String args[]) throws Exception {
+		Map<String, String> opts = new LinkedHashMap<String, String>();
+		opts.put("mode", "selector");
+		opts.put("reactors", "1");
+		opts.put("connections", "1000");
+		opts.put("workers", "2");
+		opts.put("portals", "16");
+		opts.put("mix", "subscribe:1,submit:8,quit:1");
+		opts.put("items", "0");
+		opts.put("payload", "256");
+		opts.put("warmup", "5");
+		opts.put("duration", "10");
+		for (String arg : args) {
+			String kv[] = arg.split("=", 2);
+			if (kv.length != 2 || !opts.containsKey(kv[0]))
+				throw new IllegalArgumentException("Don't know what to do with "+arg);
+			opts.put(kv[0], kv[1]);
+		}
+
+		int cumulative[] = new int[COMMANDS.length];
+		for (String part : opts.get("mix").split(",")) {
+			String kv[] = part.split(":", 2);
+			int idx = Arrays.asList(COMMANDS).indexOf(kv[0]);
+			if (kv.length != 2 || idx < 0)
+				throw new IllegalArgumentException("Invalid mix entry "+part);
+			cumulative[idx] = Integer.parseInt(kv[1]);
+		}
+		for (int i=1; i<cumulative.length; i++)
+			cumulative[i] += cumulative[i-1];
+		if (cumulative[cumulative.length-1] <= 0)
+			throw new IllegalArgumentException("Empty mix");
+
+		int nconns = Integer.parseInt(opts.get("connections"));
+		int nworkers = Integer.parseInt(opts.get("workers"));
+		int nportals = Integer.parseInt(opts.get("portals"));
+		int itemRate = Integer.parseInt(opts.get("items"));
+		byte payload[] = new byte[Integer.parseInt(opts.get("payload"))];
+		new Random(23).nextBytes(payload);
+
+		Logger logger = Logger.getAnonymousLogger();
+		logger.setLevel(Level.WARNING);
+		InetSocketAddress addr = new InetSocketAddress("localhost", 0);
+		final StubPubSub pubsub = new StubPubSub();
+		Transport server;
+		if (opts.get("mode").equals("threads"))
+			server = new ThreadedServer(logger, addr, "loadgen", pubsub);
+		else
+			server = new Server(logger, addr, "loadgen", pubsub, Integer.parseInt(opts.get("reactors")), false);
+		server.start();
+		InetSocketAddress bound = (InetSocketAddress)server.getAddress();
+
+		Worker workers[] = new Worker[nworkers];
+		for (int i=0; i<nworkers; i++)
+			workers[i] = new Worker(i, bound, nconns/nworkers + (i < nconns%nworkers ? 1 : 0), cumulative, nportals,
+					Base64.getEncoder().encodeToString(payload));
+		for (Worker w : workers)
+			w.start();
+
+		final long offered[] = new long[2]; /* accepted, refused */
+		Thread fanout = new Thread("UDPCraft Fanout") {
+			public void run() {
+				long next = System.nanoTime();
+				long seq = 0;
+				while (!stopping && itemRate > 0) {
+					String portal = "portal"+(seq++ % nportals);
+					Set<ItemListener> s = pubsub.subs.get(portal);
+					if (s != null) {
+						ItemMessage msg = new SyntheticMessage(portal, payload);
+						for (ItemListener l : s) {
+							boolean ok = l.emitMessage(null, msg);
+							if (measuring)
+								offered[ok ? 0 : 1]++;
+						}
+					}
+					next += 1000000000L / itemRate;
+					long delay = next - System.nanoTime();
+					if (delay > 1000000)
+						try {
+							Thread.sleep(delay / 1000000);
+						} catch (InterruptedException ex) {
+							return;
+						}
+				}
+			}
+		};
+		fanout.setDaemon(true);
+		fanout.start();
+
+		System.out.println("Warming up for "+opts.get("warmup")+"s with "+opts);
+		Thread.sleep(Long.parseLong(opts.get("warmup"))*1000);
+		long alloc0 = serverAllocatedBytes();
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(Long.parseLong(opts.get("duration"))*1000);
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		long alloc = serverAllocatedBytes() - alloc0;
+		stopping = true;
+		for (Worker w : workers)
+			w.join();
+		server.stop();
+
+		Histogram latency = new Histogram();
+		long commands = 0, errors = 0, items = 0, reconnects = 0;
+		for (Worker w : workers) {
+			latency.add(w.latency);
+			commands += w.commands;
+			errors += w.errors;
+			items += w.items;
+			reconnects += w.reconnects;
+		}
+		double secs = elapsed/1e9;
+		System.out.printf("commands:    %12.0f/s (%d errors, %d reconnects)%n", commands/secs, errors, reconnects);
+		System.out.printf("latency:     p50 %8.1fus  p99 %8.1fus  p999 %8.1fus%n",
+				latency.percentile(0.5)/1e3, latency.percentile(0.99)/1e3, latency.percentile(0.999)/1e3);
+		System.out.printf("items:       %12.0f/s received, %.0f/s offered, %.0f/s refused%n",
+				items/secs, offered[0]/secs, offered[1]/secs);
+		System.out.printf("allocation:  %12.1f MB/s, %.0f bytes/command%n",
+				alloc/secs/1e6, commands > 0 ? (double)alloc/commands : 0.0);
+	}
+}
@@ -0,0 +1,133 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jaseg.udpcraft.ItemListener;
+import net.jaseg.udpcraft.ItemMessage;
+import net.jaseg.udpcraft.Portal;
+import net.jaseg.udpcraft.PubSubHandler;
+import net.jaseg.udpcraft.Transport;
+
+/* Compares the selector Server against ThreadedServer. Every client connection does a number of SUBMIT round trips
+ * against a stub PubSubHandler whose submit() burns a configurable amount of time, which is roughly what the real
+ * ConnectionMux does while verifying and parsing an item.
+ *
+ * Usage: ServerModeBenchmark [connections...] (default 1000 10000)
+ *
+ * The clients live in the same JVM, so 10k connections need a file descriptor limit of well over 20k (ulimit -n). */
+public class ServerModeBenchmark {
+	private static final int ROUNDS = 20;
+	private static final long SUBMIT_COST_NANOS = 50*1000;
+
+	private static class StubPubSub implements PubSubHandler {
+		public void subscribe(String portal, String password, ItemListener listener) {}
+		public void unsubscribe(String portal, ItemListener listener) {}
+		public boolean emitMessage(Portal portal, ItemMessage msg) { return false; }
+		public void submit(String portal, byte msg[]) {
+			long end = System.nanoTime() + SUBMIT_COST_NANOS;
+			while (System.nanoTime() < end)
+				;
+		}
+	}
+
+	private static class Client {
+		SocketChannel ch;
+		ByteBuffer in = ByteBuffer.allocate(256);
+		int greeted = 0;
+		int replies = 0;
+	}
+
+	public static void main(String args[]) throws IOException {
+		int counts[] = {1000, 10000};
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i=0; i<args.length; i++)
+				counts[i] = Integer.parseInt(args[i]);
+		}
+
+		Logger logger = Logger.getAnonymousLogger();
+		logger.setLevel(Level.WARNING);
+		InetSocketAddress addr = new InetSocketAddress("localhost", 0);
+		int ncpu = Runtime.getRuntime().availableProcessors();
+
+		for (int n : counts) {
+			run("selector x1", new Server(logger, addr, "bench", new StubPubSub()), n);
+			run("selector x"+ncpu, new Server(logger, addr, "bench", new StubPubSub(), ncpu, false), n);
+			run("threads", new ThreadedServer(logger, addr, "bench", new StubPubSub()), n);
+		}
+	}
+
+	private static void run(String label, Transport server, int nconns) throws IOException {
+		server.start();
+		Selector sel = Selector.open();
+		Client clients[] = new Client[nconns];
+		for (int i=0; i<nconns; i++) {
+			clients[i] = new Client();
+			clients[i].ch = SocketChannel.open(server.getAddress());
+			clients[i].ch.configureBlocking(false);
+			clients[i].ch.register(sel, SelectionKey.OP_READ, clients[i]);
+		}
+
+		/* Wait for all greetings before starting the clock */
+		int pending = nconns;
+		while (pending > 0)
+			pending -= pump(sel, true);
+
+		ByteBuffer submit = ByteBuffer.wrap("SUBMIT benchportal Zm5vcmQ=\r\n".getBytes());
+		long start = System.nanoTime();
+		for (Client c : clients)
+			c.ch.write(submit.duplicate());
+
+		long total = (long)nconns*ROUNDS;
+		long done = 0;
+		while (done < total)
+			done += pump(sel, false);
+		long elapsed = System.nanoTime() - start;
+
+		for (Client c : clients)
+			c.ch.close();
+		sel.close();
+		server.stop();
+
+		System.out.printf("%-14s %6d conns: %8.1f ms, %10.0f round trips/s%n",
+				label, nconns, elapsed/1e6, total/(elapsed/1e9));
+	}
+
+	/* Returns the number of complete lines received. In the measurement phase, each reply triggers the next SUBMIT
+	 * until a client has done its ROUNDS. */
+	private static int pump(Selector sel, boolean greeting) throws IOException {
+		sel.select();
+		int lines = 0;
+		ByteBuffer submit = ByteBuffer.wrap("SUBMIT benchportal Zm5vcmQ=\r\n".getBytes());
+		Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			Client c = (Client)key.attachment();
+			if (c.ch.read(c.in) < 0)
+				throw new IOException("Server hung up on us");
+			c.in.flip();
+			while (c.in.hasRemaining()) {
+				if (c.in.get() != '\n')
+					continue;
+				lines++;
+				if (greeting) {
+					c.greeted++;
+				} else if (++c.replies < ROUNDS) {
+					submit.rewind();
+					c.ch.write(submit);
+				}
+			}
+			c.in.clear();
+		}
+		return lines;
+	}
+}
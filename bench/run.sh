@@ -0,0 +1,49 @@
+#!/bin/sh
+# Builds and runs what is in bench/. The plugin has no build system of its own, so this is javac with JMH's annotation
+# processor, which writes the generated benchmark classes and META-INF/BenchmarkList next to ours.
+#
+#   bench/run.sh                                 all JMH benchmarks with their own settings
+#   bench/run.sh SignBenchmark -prof gc          anything else goes to org.openjdk.jmh.Main, see -h
+#   bench/run.sh -main net.jaseg.udpcraft.plaintext.LoadGenerator ...
+#                                                runs that class's main() instead, same for PipelineBenchmark and
+#                                                ServerModeBenchmark
+#
+# Needs the jars the plugin is built against (the Bukkit 1.12 API and bcprov) in bench/lib or on $UDPCRAFT_CP. The JMH
+# jars are fetched from Maven Central into bench/lib the first time. Output goes to bench/target.
+set -e
+cd "$(dirname "$0")/.."
+
+LIB=bench/lib
+OUT=bench/target
+MAVEN=https://repo1.maven.org/maven2
+JMH_VERSION=1.37
+
+fetch() {
+	jar=$LIB/$2-$3.jar
+	if [ ! -f $jar ]; then
+		echo "Fetching $2 $3"
+		curl -fsSL -o $jar.tmp $MAVEN/$1/$2/$3/$2-$3.jar
+		mv $jar.tmp $jar
+	fi
+}
+
+mkdir -p $LIB
+fetch org/openjdk/jmh jmh-core $JMH_VERSION
+fetch org/openjdk/jmh jmh-generator-annprocess $JMH_VERSION
+fetch net/sf/jopt-simple jopt-simple 5.0.4
+fetch org/apache/commons commons-math3 3.6.1
+
+CP=$(ls $LIB/*.jar | tr '\n' ':')$UDPCRAFT_CP
+rm -rf $OUT
+mkdir -p $OUT/classes $OUT/generated
+javac -encoding UTF-8 -cp "$CP" \
+	-processorpath $LIB/jmh-generator-annprocess-$JMH_VERSION.jar:$LIB/jmh-core-$JMH_VERSION.jar \
+	-s $OUT/generated -d $OUT/classes \
+	$(find src bench -name '*.java' ! -name '*Test.java')
+
+MAIN=org.openjdk.jmh.Main
+if [ "$1" = "-main" ]; then
+	MAIN=$2
+	shift 2
+fi
+exec java -cp "$OUT/classes:$CP" $MAIN "$@"
@@ -1,21 +1,46 @@
 package net.jaseg.udpcraft;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bouncycastle.util.Arrays;
 
 import net.jaseg.udpcraft.Portal.InvalidLocationException;
+import net.jaseg.udpcraft.SignatureDataStore.NoSerialException;
 
 public class ConnectionMux implements PubSubHandler { 
-	private Map<Portal, Queue<ItemListener>> portalConns = new HashMap<Portal, Queue<ItemListener>>();
+	/* Subscribers start out without flow control. Once one grants credit for a portal it only gets that many more items
+	 * from it, the rest stays in the chest until the next CREDIT. */
+	private static class Subscription {
+		static final int UNLIMITED = -1;
+		
+		final ItemListener listener;
+		int credit = UNLIMITED;
+		
+		Subscription(ItemListener listener) {
+			this.listener = listener;
+		}
+		
+		void take(int n) {
+			if (credit != UNLIMITED)
+				credit -= n;
+		}
+	}
+	
+	private Map<Portal, Queue<Subscription>> portalConns = new HashMap<Portal, Queue<Subscription>>();
 	private PortalIndex index;
 	private Logger logger;
 	private SignatureDataStore sigstore;
+	private WorkerPool workers;
 	
 	public ConnectionMux(Logger logger, PortalIndex index, SignatureDataStore sigstore) {
 		this.logger = logger;
@@ -23,31 +48,73 @@ public class ConnectionMux implements PubSubHandler {
 		this.sigstore = sigstore;
 	}
 	
+	/* Batches get verified on these in parallel. Without, everything happens on the submitting thread. */
+	public void setWorkers(WorkerPool workers) {
+		this.workers = workers;
+	}
+	
 	public synchronized void subscribe(String name, String password, ItemListener conn) throws IllegalArgumentException {
 		Portal portal = index.lookupPortalOrDie(name);
 		if (!portalConns.containsKey(portal))
-			portalConns.put(portal, new LinkedList<ItemListener>());
-		Queue<ItemListener> conns = portalConns.get(portal);
-		if (conns.contains(conn))
+			portalConns.put(portal, new LinkedList<Subscription>());
+		Queue<Subscription> conns = portalConns.get(portal);
+		if (find(conns, conn) != null)
 			throw new IllegalArgumentException("Portal was already subscribed");
 		String ppw = portal.getPassword();
 		if (ppw != null && password == null)
 			throw new IllegalArgumentException("Passwords do not match");
 		if (ppw != null && Arrays.constantTimeAreEqual(password.getBytes(), portal.getPassword().getBytes()))
 			throw new IllegalArgumentException("Passwords do not match");
-		conns.add(conn);
+		conns.add(new Subscription(conn));
 		portal.queueUpdate();
 	}
 	
 	public synchronized void unsubscribe(String name, ItemListener conn) throws IllegalArgumentException {
 		Portal portal = index.lookupPortalOrDie(name);
-		Queue<ItemListener> queue = portalConns.get(portal);
-		if (!queue.remove(conn))
+		Queue<Subscription> queue = portalConns.get(portal);
+		Subscription sub = queue == null ? null : find(queue, conn);
+		if (sub == null)
 			throw new IllegalArgumentException("Portal was not subscribed");
+		queue.remove(sub);
 		if (queue.isEmpty())
 			portalConns.remove(portal);
 	}
 	
+	public synchronized void unsubscribeAll(ItemListener conn) {
+		Iterator<Queue<Subscription>> it = portalConns.values().iterator();
+		while (it.hasNext()) {
+			Queue<Subscription> queue = it.next();
+			queue.remove(find(queue, conn));
+			if (queue.isEmpty())
+				it.remove();
+		}
+	}
+	
+	public void credit(String name, ItemListener conn, int n) throws IllegalArgumentException {
+		if (n < 0)
+			throw new IllegalArgumentException("Negative credit");
+		Portal portal = index.lookupPortalOrDie(name);
+		synchronized (this) {
+			Queue<Subscription> queue = portalConns.get(portal);
+			Subscription sub = queue == null ? null : find(queue, conn);
+			if (sub == null)
+				throw new IllegalArgumentException("Portal was not subscribed");
+			if (sub.credit == Subscription.UNLIMITED)
+				sub.credit = 0;
+			sub.credit = (int)Math.min((long)sub.credit + n, Integer.MAX_VALUE);
+		}
+		/* Whatever piled up in the chest while this one was out of credit can go now */
+		if (n > 0)
+			portal.queueUpdate();
+	}
+	
+	private static Subscription find(Queue<Subscription> queue, ItemListener conn) {
+		for (Subscription sub : queue)
+			if (sub.listener == conn)
+				return sub;
+		return null;
+	}
+	
 	public synchronized boolean emitMessage(Portal portal, ItemMessage msg) throws IllegalArgumentException {
 		logger.log(Level.INFO, "Routing message from "+portal.getName());
 		if (!portalConns.containsKey(portal)) {
@@ -56,15 +123,63 @@ public class ConnectionMux implements PubSubHandler {
 		}
 		
 		logger.log(Level.INFO, "Handling message TCP transport on connection");
-		boolean any = false;
-		for (ItemListener conn : portalConns.get(portal)) {
-			logger.log(Level.INFO, conn.toString());
-			any = any || conn.emitMessage(portal, msg);
+		for (Subscription sub : portalConns.get(portal)) {
+			logger.log(Level.INFO, sub.listener.toString());
+			if (sub.credit == 0)
+				continue;
+			try {
+				if (sub.listener.emitMessage(portal, msg)) {
+					sub.take(1);
+					return true;
+				}
+			} catch (NoSerialException ex) {
+				retryLater(portal, ex);
+				return false;
+			}
 		}
-		return any;
+		return false;
+	}
+	
+	public synchronized int emitMessages(Portal portal, List<ItemMessage> msgs) {
+		logger.log(Level.INFO, "Routing "+msgs.size()+" messages from "+portal.getName());
+		if (!portalConns.containsKey(portal)) {
+			logger.log(Level.INFO, "No handlers found");
+			return 0;
+		}
+		
+		/* Same as emitMessage: whatever the first listener does not take goes to the next one */
+		int sent = 0;
+		for (Subscription sub : portalConns.get(portal)) {
+			if (sent == msgs.size())
+				break;
+			/* credit goes up to Integer.MAX_VALUE, so sent + credit may not fit an int */
+			int end = sub.credit == Subscription.UNLIMITED ? msgs.size() : (int)Math.min(msgs.size(), (long)sent + sub.credit);
+			if (end == sent)
+				continue;
+			int n;
+			try {
+				n = sub.listener.emitMessages(portal, msgs.subList(sent, end));
+			} catch (NoSerialException ex) {
+				retryLater(portal, ex);
+				break;
+			}
+			sub.take(n);
+			sent += n;
+		}
+		return sent;
+	}
+	
+	/* Whatever didn't go out stays in the chest, and the chest gets another go once the next update is due */
+	private void retryLater(Portal portal, NoSerialException ex) {
+		logger.log(Level.WARNING, "Not sending from "+portal.getName()+" for now: "+ex.getMessage());
+		portal.queueUpdate();
 	}
 	
 	public void submit(String name, byte msg[]) throws IllegalArgumentException {
+		submit(name, ByteBuffer.wrap(msg));
+	}
+	
+	public void submit(String name, ByteBuffer msg) throws IllegalArgumentException {
 		Portal portal = index.lookupPortalOrDie(name);
 		try {
 			portal.receiveMessage(ItemMessage.deserialize(logger, sigstore, msg));
@@ -72,4 +187,41 @@ public class ConnectionMux implements PubSubHandler {
 			throw new IllegalArgumentException("Invalid portal: "+ex.getMessage());
 		}
 	}
-}
\ No newline at end of file
+	
+	/* Checks all MACs first, in parallel if we have workers, and only then puts whatever checked out into the chest in
+	 * batch order */
+	public List<Integer> submitBatch(String name, List<byte[]> msgs) throws IllegalArgumentException {
+		Portal portal = index.lookupPortalOrDie(name);
+		ItemMessage verified[] = new ItemMessage[msgs.size()];
+		IntConsumer verify = i -> {
+			try {
+				if (msgs.get(i) == null)
+					throw new IllegalArgumentException("Invalid message");
+				verified[i] = ItemMessage.deserialize(logger, sigstore, msgs.get(i));
+			} catch(IllegalArgumentException ex) {
+				logger.log(Level.INFO, "Rejecting batch item "+i+": "+ex.getMessage());
+			}
+		};
+		if (workers != null && msgs.size() > 1) {
+			workers.forEach(msgs.size(), verify);
+		} else {
+			for (int i=0; i<msgs.size(); i++)
+				verify.accept(i);
+		}
+		
+		List<Integer> failed = new ArrayList<Integer>();
+		for (int i=0; i<verified.length; i++) {
+			if (verified[i] == null) {
+				failed.add(i);
+				continue;
+			}
+			try {
+				portal.receiveMessage(verified[i]);
+			} catch(InvalidLocationException ex) {
+				/* The portal itself is broken, no point in trying the rest */
+				throw new IllegalArgumentException("Invalid portal: "+ex.getMessage());
+			}
+		}
+		return failed;
+	}
+}
@@ -0,0 +1,110 @@
+package net.jaseg.udpcraft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Portal.class, PortalIndex.class, ItemMessage.class })
+public class ConnectionMuxTest {
+	private ConnectionMux mux;
+	private Portal portal;
+	private ItemListener slow;
+	private ItemListener fast;
+	private List<ItemMessage> msgs;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() {
+		portal = mock(Portal.class);
+		when(portal.getName()).thenReturn("testportal");
+		PortalIndex index = mock(PortalIndex.class);
+		when(index.lookupPortalOrDie("testportal")).thenReturn(portal);
+		mux = new ConnectionMux(Logger.getAnonymousLogger(), index, mock(SignatureDataStore.class));
+
+		slow = mock(ItemListener.class);
+		fast = mock(ItemListener.class);
+		for (ItemListener l : new ItemListener[] { slow, fast }) {
+			when(l.emitMessage(any(), any())).thenReturn(true);
+			when(l.emitMessages(any(), anyListOf(ItemMessage.class))).thenAnswer(inv -> ((List<ItemMessage>)inv.getArguments()[1]).size());
+		}
+		msgs = Arrays.asList(mock(ItemMessage.class), mock(ItemMessage.class), mock(ItemMessage.class));
+	}
+
+	@Test
+	public void testCredit() {
+		mux.subscribe("testportal", null, slow);
+		mux.credit("testportal", slow, 2);
+		verify(portal, times(2)).queueUpdate();
+
+		/* Slow one only gets as many as it asked for */
+		assertEquals(2, mux.emitMessages(portal, msgs));
+		verify(slow).emitMessages(portal, msgs.subList(0, 2));
+		assertFalse(mux.emitMessage(portal, msgs.get(2)));
+		verify(slow, never()).emitMessage(any(), any());
+
+		/* Listeners without credit take the rest */
+		mux.subscribe("testportal", null, fast);
+		assertEquals(3, mux.emitMessages(portal, msgs));
+		verify(fast).emitMessages(portal, msgs);
+
+		mux.credit("testportal", slow, 1);
+		assertTrue(mux.emitMessage(portal, msgs.get(0)));
+		verify(slow).emitMessage(portal, msgs.get(0));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCreditUnsubscribed() {
+		mux.credit("testportal", slow, 1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeCredit() {
+		mux.subscribe("testportal", null, slow);
+		mux.credit("testportal", slow, -1);
+	}
+
+	@Test
+	public void testNoSerial() {
+		mux.subscribe("testportal", null, slow);
+		mux.subscribe("testportal", null, fast);
+		mux.credit("testportal", slow, 1);
+		when(fast.emitMessages(any(), anyListOf(ItemMessage.class))).thenThrow(new SignatureDataStore.NoSerialException("test"));
+		when(fast.emitMessage(any(), any())).thenThrow(new SignatureDataStore.NoSerialException("test"));
+
+		/* What the first one took still counts, the rest stays and the portal tries again later */
+		assertEquals(1, mux.emitMessages(portal, msgs));
+		verify(portal, times(4)).queueUpdate();
+		assertFalse(mux.emitMessage(portal, msgs.get(1)));
+		verify(portal, times(5)).queueUpdate();
+	}
+
+	@Test
+	public void testHugeCredit() {
+		mux.subscribe("testportal", null, slow);
+		mux.subscribe("testportal", null, fast);
+		mux.credit("testportal", slow, 1);
+		mux.credit("testportal", fast, Integer.MAX_VALUE);
+
+		assertEquals(3, mux.emitMessages(portal, msgs));
+		verify(slow).emitMessages(portal, msgs.subList(0, 1));
+		verify(fast).emitMessages(portal, msgs.subList(1, 3));
+	}
+}
@@ -0,0 +1,253 @@
+package net.jaseg.udpcraft;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* A SerialCoordinator that is just a directory every server can get at, with file locks keeping them out of each
+ * other's way:
+ *
+ *   lease.dat          [s32 magic] [s32 block size] [s32 next serial]
+ *   block-<first>.dat  [s32 magic] [s32 first] [s64 until] [s64 voided bits]...
+ *
+ * Leases are handed out in whole blocks. lease() locks lease.dat, writes a file for each new block (to a temporary file
+ * renamed into place, so they only show up complete) and then moves next up. voidSerial() only locks the eight bytes of
+ * bitmap its serial is in, so voids of different serials hardly ever wait for each other, whether they come from
+ * different servers or different threads. File locks are held per JVM, not per thread, so threads in here also go
+ * through a set of striped monitors first. That also keeps apart several coordinators on one directory in the same JVM.
+ *
+ * A void costs a monitor, a file lock and a pread and pwrite of eight bytes, each a round trip to the server on a network
+ * filesystem, so callers should keep voids off threads that have anything better to do.
+ *
+ * expire() deletes blocks whose lease ended more than maxLifetimeMillis ago. A serial without a block file was never
+ * leased or has expired, either way it is refused.
+ *
+ * Voids aren't forced to disk. If the machine holding the directory goes down, items voided right before might be taken
+ * again. This is meant for a few servers on one box, or sharing a directory on a network filesystem with working locks,
+ * and for testing. */
+public class FileSerialCoordinator implements SerialCoordinator {
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	private static final int LEASE_MAGIC = 0x55444c53; /* "UDLS" */
+	private static final int BLOCK_MAGIC = 0x5544424b; /* "UDBK" */
+	private static final int HEADER = 16;
+
+	private static final Object stripes[] = new Object[64];
+	static {
+		for (int i=0; i<stripes.length; i++)
+			stripes[i] = new Object();
+	}
+
+	private static class Block {
+		final FileChannel channel;
+		final long until;
+
+		Block(FileChannel channel, long until) {
+			this.channel = channel;
+			this.until = until;
+		}
+	}
+
+	private final File dir;
+	private final int pathHash;
+	private final long maxLifetimeMillis;
+	private final FileChannel leases;
+	private final int blockSize;
+	private final ConcurrentHashMap<Integer, Block> blocks = new ConcurrentHashMap<Integer, Block>();
+
+	/* blockSize only counts when the directory is new, after that everybody uses what is in lease.dat */
+	public FileSerialCoordinator(File dir, int blockSize, long maxLifetimeMillis) throws IOException {
+		if (blockSize < 64 || Integer.bitCount(blockSize) != 1)
+			throw new IllegalArgumentException("Block size "+blockSize+" is not a power of two of at least 64");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create "+dir);
+		this.dir = dir;
+		this.pathHash = dir.getCanonicalPath().hashCode();
+		this.maxLifetimeMillis = maxLifetimeMillis;
+
+		leases = new RandomAccessFile(new File(dir, "lease.dat"), "rw").getChannel();
+		try {
+			synchronized (stripe(0, -1)) {
+				FileLock lock = leases.lock();
+				try {
+					ByteBuffer buf = ByteBuffer.allocate(12);
+					if (leases.size() == 0) {
+						buf.putInt(LEASE_MAGIC).putInt(blockSize).putInt(0);
+						write(leases, buf, 0);
+						leases.force(true);
+					} else {
+						read(leases, buf, 0);
+						if (buf.getInt(0) != LEASE_MAGIC)
+							throw new IOException(dir+" is not a serial coordinator directory");
+						blockSize = buf.getInt(4);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		} catch (IOException|RuntimeException ex) {
+			leases.close();
+			throw ex;
+		}
+		this.blockSize = blockSize;
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public int lease(int count, long until) throws IOException {
+		if (count < 1)
+			throw new IllegalArgumentException("Can't lease "+count+" serials");
+		int nblocks = (int)(((long)count + blockSize - 1) / blockSize);
+		synchronized (stripe(0, -1)) {
+			FileLock lock = leases.lock();
+			try {
+				ByteBuffer buf = ByteBuffer.allocate(12);
+				read(leases, buf, 0);
+				int first = buf.getInt(8);
+				/* Blocks first. If we die before next is moved up, the next lease just writes them again. */
+				for (int i=0; i<nblocks; i++)
+					createBlock(first + i*blockSize, until);
+				buf.putInt(8, first + nblocks*blockSize);
+				write(leases, buf, 0);
+				leases.force(false);
+				return first;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	private void createBlock(int first, long until) throws IOException {
+		File tmp = new File(dir, name(first)+".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER + blockSize/8);
+			buf.putInt(BLOCK_MAGIC).putInt(first).putLong(until);
+			fos.write(buf.array());
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir, name(first)+".dat").toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void voidSerial(int serial, long now) throws IOException, IllegalArgumentException {
+		int first = serial & -blockSize;
+		Block b = block(first);
+		if (b == null)
+			throw new IllegalArgumentException("Invalid key!");
+		if (now - b.until > maxLifetimeMillis)
+			throw new IllegalArgumentException("Item is expired!");
+
+		int word = (serial - first) >>> 6;
+		long bit = 1L << serial;
+		synchronized (stripe(first, word)) {
+			FileLock lock = b.channel.lock(HEADER + word*8, 8, false);
+			try {
+				ByteBuffer buf = ByteBuffer.allocate(8);
+				read(b.channel, buf, HEADER + word*8);
+				long w = buf.getLong(0);
+				if ((w & bit) != 0)
+					throw new IllegalArgumentException("Invalid key!");
+				buf.putLong(0, w | bit);
+				write(b.channel, buf, HEADER + word*8);
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/* The block starting at first, or null if there is no file for it */
+	private Block block(int first) throws IOException {
+		Block b = blocks.get(first);
+		if (b != null)
+			return b;
+		FileChannel ch;
+		try {
+			ch = FileChannel.open(new File(dir, name(first)+".dat").toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (NoSuchFileException ex) {
+			return null;
+		}
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER);
+			read(ch, buf, 0);
+			if (buf.getInt(0) != BLOCK_MAGIC || buf.getInt(4) != first)
+				throw new IOException("Corrupt serial block "+name(first));
+			b = new Block(ch, buf.getLong(8));
+		} catch (IOException ex) {
+			ch.close();
+			throw ex;
+		}
+		Block prev = blocks.putIfAbsent(first, b);
+		if (prev != null) {
+			ch.close();
+			return prev;
+		}
+		return b;
+	}
+
+	public int expire(long now) throws IOException {
+		for (Iterator<Block> it = blocks.values().iterator(); it.hasNext(); ) {
+			Block b = it.next();
+			if (now - b.until > maxLifetimeMillis) {
+				it.remove();
+				b.channel.close();
+			}
+		}
+
+		/* Whoever gets there first deletes them, the others find them gone */
+		int n = 0;
+		File files[] = dir.listFiles((d, name) -> name.startsWith("block-") && name.endsWith(".dat"));
+		if (files == null)
+			throw new IOException("Can't list "+dir);
+		for (File f : files) {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER);
+			try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+				read(ch, buf, 0);
+			} catch (NoSuchFileException ex) {
+				continue;
+			}
+			if (now - buf.getLong(8) > maxLifetimeMillis && f.delete())
+				n++;
+		}
+		return n;
+	}
+
+	public void close() throws IOException {
+		for (Block b : blocks.values())
+			b.channel.close();
+		blocks.clear();
+		leases.close();
+	}
+
+	private Object stripe(int first, int word) {
+		return stripes[((pathHash*31 + first)*31 + word) & (stripes.length - 1)];
+	}
+
+	private static String name(int first) {
+		return String.format("block-%08x", first);
+	}
+
+	private static void read(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+		buf.clear();
+		while (buf.hasRemaining())
+			if (ch.read(buf, pos + buf.position()) < 0)
+				throw new IOException("Unexpected end of file");
+	}
+
+	private static void write(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+		buf.rewind();
+		while (buf.hasRemaining())
+			ch.write(buf, pos + buf.position());
+	}
+}
@@ -1,5 +1,29 @@
 package net.jaseg.udpcraft;
 
+import java.util.List;
+
+import net.jaseg.udpcraft.SignatureDataStore.NoSerialException;
+
+/* Listeners sign messages as they send them. If that throws NoSerialException, whatever they took before still counts
+ * but nothing of the failed call may have gone out. */
 public interface ItemListener {
-	boolean emitMessage(Portal portal, ItemMessage msg);
+	boolean emitMessage(Portal portal, ItemMessage msg) throws NoSerialException;
+
+	/* Emits a whole chest flush at once. Returns how many messages from the front of msgs were taken. */
+	default int emitMessages(Portal portal, List<ItemMessage> msgs) throws NoSerialException {
+		int n = 0;
+		for (ItemMessage msg : msgs) {
+			try {
+				if (!emitMessage(portal, msg))
+					break;
+			} catch (NoSerialException ex) {
+				/* The ones before are out there already */
+				if (n == 0)
+					throw ex;
+				break;
+			}
+			n++;
+		}
+		return n;
+	}
 }
@@ -1,22 +1,43 @@
 package net.jaseg.udpcraft;
 
 import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import org.bouncycastle.crypto.Mac;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.util.Arrays;
-import org.bukkit.configuration.InvalidConfigurationException;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.inventory.ItemStack;
 
+/* Signed messages come in two formats. The legacy one is
+ *
+ *   [32 byte HMAC-SHA256(secret, serial | payload)] [s32 serial] [payload]
+ *
+ * and keyed messages, signed with whatever key of the KeyRing the store says, look like
+ *
+ *   [u8 KEYED] [u8 key id] [s32 serial] [payload] [MAC over everything before it]
+ *
+ * with the MAC length and algorithm given by the key. Receivers figure out which one they got by trying them in turn,
+ * since a legacy message starts with the tag byte one time in 256. */
 public class ItemMessage {
 	private static final int MAC_LENGTH = 256;
+	public static final byte KEYED = (byte)0xbc;
+	private static final int KEYED_HEADER_LEN = 1 + 1 + 4;
+	
+	/* One way of putting a message on the wire, e.g. a text protocol ITEM line. Implementations are used as cache keys
+	 * by identity, so keep them in constants. */
+	public interface Encoding {
+		ByteBuffer encode(ItemMessage msg);
+	}
 	
 	private ItemStack stack;
 	private String portalName;
 	private byte[] serialized;
+	private int serial;
+	private Map<Encoding, ByteBuffer> encoded;
 	
 	private SignatureDataStore sigdata;
 	
@@ -35,31 +56,97 @@ public class ItemMessage {
 	}
 	
 	public byte[] serializeStack() {
-		FileConfiguration fconfig = new YamlConfiguration();
-		fconfig.set("item", stack);
-		return fconfig.saveToString().getBytes();
+		return ItemStackCodec.encode(stack);
 	}
 	
 	public synchronized byte[] serialize() {
 		/* This is a bit improvised. Please excuse me. */
-		if (serialized == null)
-			serialized = sign(sigdata, serializeStack());
+		if (serialized == null) {
+			serial = sigdata.nextSerial();
+			serialized = sign(sigdata, serializeStack(), serial);
+		}
 		return serialized;
 	}
 	
+	/* For listeners that took this message but never got it delivered. Voids its serial so that it can't be received
+	 * anywhere anymore, should it turn up after all. Returns false if that didn't work, e.g. because somebody received
+	 * it in the meantime, in which case the stack must not be handed out again. */
+	public boolean revoke() {
+		int s;
+		synchronized (this) {
+			if (serialized == null)
+				return true; /* Never left the building */
+			s = serial;
+		}
+		try {
+			sigdata.voidSerial(s);
+			return true;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+	
+	/* Encodes this message once per encoding no matter how many listeners ask for it. Every caller gets its own view
+	 * of the shared bytes, so it may advance position and limit as it pleases but can't write to it. */
+	public synchronized ByteBuffer encode(Encoding enc) {
+		if (encoded == null)
+			encoded = new IdentityHashMap<Encoding, ByteBuffer>(4);
+		ByteBuffer buf = encoded.get(enc);
+		if (buf == null) {
+			buf = enc.encode(this).asReadOnlyBuffer();
+			encoded.put(enc, buf);
+		}
+		return buf.duplicate();
+	}
+	
+	/* HMac.init() hashes the padded key into inner and outer digest states and doFinal() rewinds to those, so one
+	 * initialized HMac per thread is good for any number of messages. It is tied to the KeyParameter instance it was
+	 * initialized with, handing a new secret to the SignatureDataStore re-initializes it on next use. */
+	private static class MacState {
+		final HMac hmac = new HMac(new SHA256Digest());
+		final byte mac[] = new byte[MAC_LENGTH/8];
+		final byte ref[] = new byte[MAC_LENGTH/8];
+		final byte scratch[] = new byte[1024];
+		KeyParameter key;
+
+		HMac hmac(KeyParameter secret) {
+			if (secret != key) {
+				hmac.init(secret);
+				key = secret;
+			}
+			return hmac;
+		}
+	}
+	private static final ThreadLocal<MacState> macs = ThreadLocal.withInitial(MacState::new);
+
 	public static byte[] sign(SignatureDataStore sigdata, byte[] cbytes) {
+		return sign(sigdata, cbytes, sigdata.nextSerial());
+	}
+	
+	private static byte[] sign(SignatureDataStore sigdata, byte[] cbytes, int serial) {
 		if (cbytes.length > Integer.MAX_VALUE/2)
 			throw new IllegalArgumentException("Got item stack serializing to "+cbytes.length+" > INT_MAX/2 bytes");
 		
+		KeyRing.Key key = ring(sigdata).signingKey();
+		if (key != null) {
+			int len = KEYED_HEADER_LEN + cbytes.length;
+			ByteBuffer buf = ByteBuffer.allocate(len + key.algorithm.length);
+			buf.put(KEYED);
+			buf.put((byte)key.id);
+			buf.putInt(serial);
+			buf.put(cbytes);
+			key.sign(buf, 0, len, buf, len);
+			return buf.array();
+		}
+		
 		int innerLen = cbytes.length + 4;
 		int outerLen = MAC_LENGTH/8 + innerLen;
 		ByteBuffer buf = ByteBuffer.allocate(outerLen);
 		buf.position(MAC_LENGTH/8);
-		buf.putInt(sigdata.nextSerial());
+		buf.putInt(serial);
 		buf.put(cbytes);
 		
-		HMac hmac = new HMac(new SHA256Digest());
-		hmac.init(sigdata.getSecret());
+		HMac hmac = macs.get().hmac(sigdata.getSecret());
 		hmac.update(buf.array(), MAC_LENGTH/8, innerLen);
 		hmac.doFinal(buf.array(), 0);
 
@@ -67,39 +154,98 @@ public class ItemMessage {
 	}
 	
 	public static ItemMessage deserialize(Logger logger, SignatureDataStore sigdata, byte data[]) throws IllegalArgumentException {
-		return new ItemMessage(sigdata, null, unwrapItemStack(unsign(sigdata, data)));
+		return deserialize(logger, sigdata, ByteBuffer.wrap(data));
+	}
+	
+	/* Works on the message between data's position and limit, which may well be a slice of some network buffer. Nothing
+	 * gets copied on the way from there through the MAC to the item codec. data itself is left alone. */
+	public static ItemMessage deserialize(Logger logger, SignatureDataStore sigdata, ByteBuffer data) throws IllegalArgumentException {
+		return new ItemMessage(sigdata, null, ItemStackCodec.decode(unsign(sigdata, data)));
 	}
 	
 	public static byte[] unsign(SignatureDataStore plugin, byte []in) throws IllegalArgumentException{
-		ByteBuffer buf = ByteBuffer.wrap(in);
+		ByteBuffer payload = unsign(plugin, ByteBuffer.wrap(in));
+		byte out[] = new byte[payload.remaining()];
+		payload.get(out);
+		return out;
+	}
+	
+	/* Returns the payload as a slice of in */
+	public static ByteBuffer unsign(SignatureDataStore plugin, ByteBuffer in) throws IllegalArgumentException{
+		KeyRing ring = ring(plugin);
+		ByteBuffer keyed = unsignKeyed(plugin, ring, in);
+		if (keyed != null)
+			return keyed;
+		if (!ring.acceptsLegacy())
+			throw new IllegalArgumentException("Invalid signature");
 		
-		byte macbytes_ref[] = new byte[MAC_LENGTH/8];
-		buf.get(macbytes_ref);
+		int pos = in.position();
+		if (in.remaining() < MAC_LENGTH/8 + 4)
+			throw new IllegalArgumentException("Invalid signature");
+		
+		MacState state = macs.get();
+		byte macbytes_ref[] = state.ref;
+		for (int i=0; i<macbytes_ref.length; i++)
+			macbytes_ref[i] = in.get(pos+i);
 		
-		byte macbytes[] = new byte[MAC_LENGTH/8];
-		HMac hmac = new HMac(new SHA256Digest());
-		hmac.init(plugin.getSecret());
-		hmac.update(buf.array(), buf.position(), buf.remaining());
+		byte macbytes[] = state.mac;
+		HMac hmac = state.hmac(plugin.getSecret());
+		update(hmac, in, pos+MAC_LENGTH/8, in.limit());
 		hmac.doFinal(macbytes, 0);
 		
 		if (!Arrays.constantTimeAreEqual(macbytes_ref, macbytes))
 			throw new IllegalArgumentException("Invalid signature");
 
-		plugin.voidSerial(buf.getInt());
+		plugin.voidSerial(in.getInt(pos+MAC_LENGTH/8));
 		
-		byte out[] = new byte[buf.remaining()];
-		buf.get(out);
-		return out;
+		ByteBuffer out = in.duplicate();
+		out.position(pos+MAC_LENGTH/8+4);
+		return out.slice();
 	}
 	
-	public static ItemStack unwrapItemStack(byte data[]) throws IllegalArgumentException{
-		FileConfiguration fconfig = new YamlConfiguration();
-		String cstring = new String(data);
-		try {
-			fconfig.loadFromString(cstring);
-		} catch (InvalidConfigurationException ex) {
-			throw new IllegalArgumentException("Interrnal error");
+	/* Returns null for anything that does not verify as a keyed message with one of our keys */
+	private static ByteBuffer unsignKeyed(SignatureDataStore sigdata, KeyRing ring, ByteBuffer in) {
+		int pos = in.position();
+		if (in.remaining() < KEYED_HEADER_LEN || in.get(pos) != KEYED)
+			return null;
+		KeyRing.Key key = ring.get(in.get(pos+1));
+		if (key == null)
+			return null;
+		int end = in.limit() - key.algorithm.length;
+		if (end < pos + KEYED_HEADER_LEN || !key.verify(in, pos, end))
+			return null;
+		
+		sigdata.voidSerial(in.getInt(pos+2));
+		
+		ByteBuffer out = in.duplicate();
+		out.limit(end);
+		out.position(pos+KEYED_HEADER_LEN);
+		return out.slice();
+	}
+	
+	private static KeyRing ring(SignatureDataStore sigdata) {
+		KeyRing ring = sigdata.getKeyRing();
+		return ring != null ? ring : KeyRing.EMPTY;
+	}
+	
+	/* Feeds in[from, to) to mac without moving in's position. Direct buffers have no array to hand to BouncyCastle, so
+	 * those go through a small per-thread scratch buffer. */
+	static void update(Mac mac, ByteBuffer in, int from, int to) {
+		if (in.hasArray()) {
+			mac.update(in.array(), in.arrayOffset()+from, to-from);
+			return;
+		}
+		byte scratch[] = macs.get().scratch;
+		ByteBuffer src = in.duplicate();
+		src.limit(to).position(from);
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), scratch.length);
+			src.get(scratch, 0, n);
+			mac.update(scratch, 0, n);
 		}
-		return fconfig.getItemStack("item");
+	}
+	
+	public static ItemStack unwrapItemStack(byte data[]) throws IllegalArgumentException{
+		return ItemStackCodec.decode(data);
 	}
 }
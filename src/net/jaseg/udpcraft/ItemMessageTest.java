@@ -1,11 +1,16 @@
 package net.jaseg.udpcraft;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.nio.ByteBuffer;
+
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.util.Arrays;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -71,4 +76,117 @@ public class ItemMessageTest {
 		data[32+4+2] = 23;
 		unsignImpl(data, "testportal", 1);
 	}
+
+	@Test
+	public void testSecretChange() {
+		UDPCraftPlugin plugin = mock(UDPCraftPlugin.class);
+		when(plugin.getSecret()).thenReturn(new KeyParameter("foobar".getBytes()), new KeyParameter("fnord".getBytes()));
+		ItemMessage.unsign(plugin, referenceMessage);
+		try {
+			ItemMessage.unsign(plugin, referenceMessage);
+			fail("Old secret still in use");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void testEncodeOnce() {
+		final int calls[] = { 0 };
+		ItemMessage.Encoding enc = new ItemMessage.Encoding() {
+			public ByteBuffer encode(ItemMessage msg) {
+				calls[0]++;
+				return ByteBuffer.wrap((msg.portalName()+" fnord").getBytes());
+			}
+		};
+		ItemMessage msg = new ItemMessage(mock(UDPCraftPlugin.class), "testportal", null);
+		
+		ByteBuffer a = msg.encode(enc);
+		ByteBuffer b = msg.encode(enc);
+		assertEquals(1, calls[0]);
+		assertTrue(a.isReadOnly());
+		
+		/* Consuming one view must not affect the other */
+		a.get(new byte[a.remaining()]);
+		byte out[] = new byte[b.remaining()];
+		b.get(out);
+		assertArrayEquals("testportal fnord".getBytes(), out);
+	}
+
+	private static KeyRing ring(int signing, KeyRing.Key... keys) {
+		return new KeyRing(java.util.Arrays.asList(keys), signing);
+	}
+
+	@Test
+	public void testKeyed() {
+		for (String alg : new String[] { "HMAC-SHA256", "HMAC-SHA256-128", "BLAKE2b-256", "SipHash-2-4" }) {
+			UDPCraftPlugin plugin = mock(UDPCraftPlugin.class);
+			when(plugin.getSecret()).thenReturn(new KeyParameter("foobar".getBytes()));
+			when(plugin.getKeyRing()).thenReturn(ring(7, new KeyRing.Key(7, MacAlgorithm.forName(alg), "fnord".getBytes())));
+			when(plugin.nextSerial()).thenReturn(1);
+
+			byte signed[] = ItemMessage.sign(plugin, "this is only a test".getBytes());
+			assertEquals(ItemMessage.KEYED, signed[0]);
+			assertEquals(7, signed[1]);
+			assertEquals(6 + 19 + MacAlgorithm.forName(alg).length, signed.length);
+			assertArrayEquals("this is only a test".getBytes(), ItemMessage.unsign(plugin, signed));
+			verify(plugin).voidSerial(eq(1));
+
+			for (int i : new int[] { 1, 5, signed.length-1 }) {
+				byte data[] = Arrays.copyOf(signed, signed.length);
+				data[i] ^= 1;
+				try {
+					ItemMessage.unsign(plugin, data);
+					fail(alg+" accepted message tampered at "+i);
+				} catch (IllegalArgumentException ex) {
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testKeyRotation() {
+		KeyRing.Key oldKey = new KeyRing.Key(1, MacAlgorithm.HMAC_SHA256, "foobar".getBytes());
+		KeyRing.Key newKey = new KeyRing.Key(2, MacAlgorithm.BLAKE2B_256, "fnord".getBytes());
+		UDPCraftPlugin plugin = mock(UDPCraftPlugin.class);
+		when(plugin.getSecret()).thenReturn(new KeyParameter("foobar".getBytes()));
+		when(plugin.nextSerial()).thenReturn(1);
+
+		when(plugin.getKeyRing()).thenReturn(ring(1, oldKey));
+		byte inFlight[] = ItemMessage.sign(plugin, "this is only a test".getBytes());
+
+		/* Old messages, keyed and legacy alike, still check out while the new key signs */
+		when(plugin.getKeyRing()).thenReturn(ring(2, oldKey, newKey));
+		assertArrayEquals("this is only a test".getBytes(), ItemMessage.unsign(plugin, inFlight));
+		assertArrayEquals("this is only a test".getBytes(), ItemMessage.unsign(plugin, referenceMessage));
+		assertEquals(2, ItemMessage.sign(plugin, "this is only a test".getBytes())[1]);
+
+		when(plugin.getKeyRing()).thenReturn(ring(2, newKey));
+		try {
+			ItemMessage.unsign(plugin, inFlight);
+			fail("Dropped key still accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void testLegacyRetired() {
+		KeyRing.Key key = new KeyRing.Key(1, MacAlgorithm.HMAC_SHA256, "fnord".getBytes());
+		UDPCraftPlugin plugin = mock(UDPCraftPlugin.class);
+		when(plugin.getSecret()).thenReturn(new KeyParameter("foobar".getBytes()));
+		when(plugin.nextSerial()).thenReturn(1);
+		when(plugin.getKeyRing()).thenReturn(new KeyRing(java.util.Arrays.asList(key), 1, false));
+
+		assertArrayEquals("this is only a test".getBytes(),
+				ItemMessage.unsign(plugin, ItemMessage.sign(plugin, "this is only a test".getBytes())));
+		try {
+			ItemMessage.unsign(plugin, referenceMessage);
+			fail("Legacy secret still accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testLegacyRetiredNeedsKey() {
+		new KeyRing(java.util.Collections.<KeyRing.Key>emptyList(), -1, false);
+	}
 }
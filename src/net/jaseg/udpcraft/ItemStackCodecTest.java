@@ -0,0 +1,141 @@
+package net.jaseg.udpcraft;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Bukkit.class, ItemStack.class })
+public class ItemStackCodecTest {
+	@Before
+	public void setUp() {
+		ItemStackCodec.setCacheSize(ItemStackCodec.DEFAULT_CACHE_SIZE);
+	}
+
+	private ItemStack stack(ItemMeta meta) {
+		ItemStack stack = mock(ItemStack.class);
+		when(stack.getType()).thenReturn(Material.DIAMOND_SWORD);
+		when(stack.getAmount()).thenReturn(23);
+		when(stack.hasItemMeta()).thenReturn(meta != null);
+		when(stack.getItemMeta()).thenReturn(meta);
+		when(stack.clone()).thenReturn(stack);
+		return stack;
+	}
+
+	private ItemMeta namedMeta(String... extraKeys) {
+		ItemMeta meta = mock(ItemMeta.class);
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("meta-type", "UNSPECIFIC");
+		fields.put("display-name", "Fnord");
+		fields.put("lore", Arrays.asList("foo", "bar"));
+		for (String key : extraKeys)
+			fields.put(key, true);
+		when(meta.serialize()).thenReturn(fields);
+		when(meta.hasDisplayName()).thenReturn(true);
+		when(meta.getDisplayName()).thenReturn("Fnord");
+		when(meta.hasLore()).thenReturn(true);
+		when(meta.getLore()).thenReturn(Arrays.asList("foo", "bar"));
+		return meta;
+	}
+
+	@Test
+	public void testRoundtrip() {
+		byte data[] = ItemStackCodec.encode(stack(null));
+		assertEquals(ItemStackCodec.VERSION_1, data[0]);
+
+		ItemStack out = ItemStackCodec.decode(data);
+		assertEquals(Material.DIAMOND_SWORD, out.getType());
+		assertEquals(23, out.getAmount());
+	}
+
+	@Test
+	public void testDurability() {
+		ItemStack stack = stack(null);
+		when(stack.getDurability()).thenReturn((short)1234);
+		byte data[] = ItemStackCodec.encode(stack);
+		assertEquals(1234, ItemStackCodec.decode(data).getDurability());
+	}
+
+	@Test
+	public void testMetaRoundtrip() {
+		byte data[] = ItemStackCodec.encode(stack(namedMeta()));
+		assertEquals(ItemStackCodec.VERSION_1, data[0]);
+
+		ItemMeta meta = mock(ItemMeta.class);
+		ItemFactory factory = mock(ItemFactory.class);
+		when(factory.getItemMeta(Material.DIAMOND_SWORD)).thenReturn(meta);
+		PowerMockito.mockStatic(Bukkit.class);
+		when(Bukkit.getItemFactory()).thenReturn(factory);
+
+		ItemStackCodec.decode(data);
+		verify(meta).setDisplayName("Fnord");
+		verify(meta).setLore(Arrays.asList("foo", "bar"));
+	}
+
+	@Test
+	public void testUnsupportedMeta() {
+		/* Those go out as YAML instead */
+		assertNull(ItemStackCodec.encodeBinary(stack(namedMeta("ItemFlags"))));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testTruncated() {
+		byte data[] = ItemStackCodec.encode(stack(null));
+		ItemStackCodec.decode(Arrays.copyOf(data, data.length-1));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownMaterial() {
+		byte data[] = ItemStackCodec.encode(stack(null));
+		data[2] = 'X';
+		ItemStackCodec.decode(data);
+	}
+
+	@Test
+	public void testEncodeCache() {
+		ItemMeta meta = namedMeta();
+		ItemStack stack = stack(meta);
+		byte a[] = ItemStackCodec.encode(stack);
+		byte ref[] = a.clone();
+		/* Scribbling over what we got must not reach the cache */
+		Arrays.fill(a, (byte)0);
+		byte b[] = ItemStackCodec.encode(stack);
+		assertArrayEquals(ref, b);
+		verify(meta, times(1)).serialize();
+		assertEquals(1, ItemStackCodec.encodeCache().hits());
+		assertEquals(1, ItemStackCodec.encodeCache().misses());
+	}
+
+	@Test
+	public void testDecodeCache() {
+		byte data[] = ItemStackCodec.encode(stack(null));
+		ItemStack a = ItemStackCodec.decode(data);
+		/* Callers get to mess with what they got */
+		a.setAmount(1);
+		ItemStack b = ItemStackCodec.decode(data.clone());
+		assertNotSame(a, b);
+		assertEquals(23, b.getAmount());
+		assertEquals(0.5, ItemStackCodec.decodeCache().hitRate(), 0.0);
+	}
+}
@@ -0,0 +1,120 @@
+package net.jaseg.udpcraft;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/* The keys a server signs and verifies keyed messages with, see ItemMessage. Every key has a one byte id that goes on the
+ * wire and is tied to exactly one MacAlgorithm, so the sender can't talk us into checking its message with a weaker
+ * algorithm than the key was meant for. One key signs, all of them verify.
+ *
+ * Rotating a secret goes: add the new key everywhere, switch signing over to it, and drop the old one once nothing
+ * signed with it can be in flight anymore. The legacy secret retires the same way, by switching off acceptLegacy once
+ * every peer signs with a key. Rings are immutable, the SignatureDataStore just hands out a new one. */
+public class KeyRing {
+	public static final KeyRing EMPTY = new KeyRing(Collections.<Key>emptyList(), -1);
+
+	private static final byte KEY_LABEL[] = "UDPCraft MAC key ".getBytes();
+
+	public static class Key {
+		public final int id;
+		public final MacAlgorithm algorithm;
+		private final KeyParameter key;
+		private final ThreadLocal<State> states;
+
+		private class State {
+			final Mac mac = algorithm.create();
+			final byte out[] = new byte[mac.getMacSize()];
+
+			State() {
+				mac.init(key);
+			}
+		}
+
+		/* The secret only ever goes into HMAC(secret, label | id | algorithm name), so the same secret can safely be used
+		 * with several algorithms or for the legacy format as well */
+		public Key(int id, MacAlgorithm algorithm, byte secret[]) {
+			if (id < 0 || id > 0xff)
+				throw new IllegalArgumentException("Key id "+id+" out of range");
+			this.id = id;
+			this.algorithm = algorithm;
+
+			HMac kdf = new HMac(new SHA256Digest());
+			kdf.init(new KeyParameter(secret));
+			kdf.update(KEY_LABEL, 0, KEY_LABEL.length);
+			kdf.update((byte)id);
+			byte name[] = algorithm.name.getBytes();
+			kdf.update(name, 0, name.length);
+			byte derived[] = new byte[kdf.getMacSize()];
+			kdf.doFinal(derived, 0);
+			key = new KeyParameter(derived, 0, algorithm.keyLength);
+
+			states = ThreadLocal.withInitial(State::new);
+		}
+
+		/* Writes the MAC of in[from, to) to out at off, without moving in's position */
+		void sign(ByteBuffer in, int from, int to, ByteBuffer out, int off) {
+			State s = states.get();
+			ItemMessage.update(s.mac, in, from, to);
+			s.mac.doFinal(s.out, 0);
+			for (int i=0; i<algorithm.length; i++)
+				out.put(off+i, s.out[i]);
+		}
+
+		/* Checks in[from, to) against the MAC at in[to, to+length) in constant time */
+		boolean verify(ByteBuffer in, int from, int to) {
+			State s = states.get();
+			ItemMessage.update(s.mac, in, from, to);
+			s.mac.doFinal(s.out, 0);
+			int diff = 0;
+			for (int i=0; i<algorithm.length; i++)
+				diff |= s.out[i] ^ in.get(to+i);
+			return diff == 0;
+		}
+
+		public String toString() {
+			return "key "+id+" ("+algorithm+")";
+		}
+	}
+
+	private final Key keys[] = new Key[256];
+	private final Key signing;
+	private final boolean acceptLegacy;
+
+	/* signingId -1 means this ring only verifies and signing stays with the legacy format */
+	public KeyRing(Collection<Key> keys, int signingId) throws IllegalArgumentException {
+		this(keys, signingId, true);
+	}
+
+	/* Without acceptLegacy, messages signed with the plain secret are refused */
+	public KeyRing(Collection<Key> keys, int signingId, boolean acceptLegacy) throws IllegalArgumentException {
+		for (Key key : keys) {
+			if (this.keys[key.id] != null)
+				throw new IllegalArgumentException("Duplicate key id "+key.id);
+			this.keys[key.id] = key;
+		}
+		if (signingId != -1 && (signingId < 0 || signingId > 0xff || this.keys[signingId] == null))
+			throw new IllegalArgumentException("Signing key "+signingId+" not found");
+		signing = signingId == -1 ? null : this.keys[signingId];
+		if (signing == null && !acceptLegacy)
+			throw new IllegalArgumentException("Can't sign with the legacy secret without accepting it");
+		this.acceptLegacy = acceptLegacy;
+	}
+
+	public Key get(int id) {
+		return keys[id & 0xff];
+	}
+
+	public Key signingKey() {
+		return signing;
+	}
+
+	public boolean acceptsLegacy() {
+		return acceptLegacy;
+	}
+}
@@ -0,0 +1,117 @@
+package net.jaseg.udpcraft;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/* Serials for a network of servers that share one secret, so that an item signed on one of them can be received on any
+ * other, but only once.
+ *
+ * Serials come in leases from a SerialCoordinator, so no two servers ever issue the same one. Issuing doesn't ask
+ * anybody until the lease runs out, either of serials or of time: a lease is only used for leaseMillis, which gives
+ * the coordinator an upper bound on when its serials went out without hearing from us again. Voids always go to the
+ * coordinator, since an item may come back to a different server than the one that signed it. With a
+ * FileSerialCoordinator that is a lock and a small read and write of a shared file per void, which on a network
+ * filesystem means a round trip each, so voids belong on worker threads rather than on a reactor.
+ *
+ * If the coordinator can't be reached when a lease runs out, nextSerial() throws NoSerialException and every call after
+ * tries again, so whatever was being sent stays in its chest until the coordinator is back.
+ *
+ * Leftover serials of a lease that ran out of time, or of the one we had when we went down, are simply never issued.
+ * Nobody has a signature for them, so it doesn't matter that the coordinator would take them. */
+public class LeasedSignatureDataStore implements SignatureDataStore, Closeable {
+	private static class Lease {
+		final AtomicInteger next;
+		final int end;
+		final long until;
+
+		Lease(int first, int end, long until) {
+			this.next = new AtomicInteger(first);
+			this.end = end;
+			this.until = until;
+		}
+	}
+
+	private final Logger logger;
+	private final KeyParameter secret;
+	private final SerialCoordinator coordinator;
+	private final int leaseSize;
+	private final long leaseMillis;
+	private volatile Lease lease;
+
+	public LeasedSignatureDataStore(Logger logger, KeyParameter secret, SerialCoordinator coordinator, int leaseSize,
+			long leaseMillis) {
+		if (leaseSize < 1)
+			throw new IllegalArgumentException("Lease size "+leaseSize+" out of range");
+		this.logger = logger;
+		this.secret = secret;
+		this.coordinator = coordinator;
+		this.leaseSize = leaseSize;
+		this.leaseMillis = leaseMillis;
+	}
+
+	public KeyParameter getSecret() {
+		return secret;
+	}
+
+	public int nextSerial() throws NoSerialException {
+		return nextSerial(System.currentTimeMillis());
+	}
+
+	int nextSerial(long now) throws NoSerialException {
+		for (;;) {
+			Lease l = lease;
+			if (l != null && now - l.until < 0) {
+				int serial = l.next.getAndIncrement();
+				if (l.end - serial > 0)
+					return serial;
+			}
+			renew(l, now);
+		}
+	}
+
+	/* The only time issuing waits for anything, once per lease */
+	private synchronized void renew(Lease old, long now) throws NoSerialException {
+		if (lease != old)
+			return;
+		try {
+			int first = coordinator.lease(leaseSize, now + leaseMillis);
+			lease = new Lease(first, first + leaseSize, now + leaseMillis);
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Error leasing serials", ex);
+			throw new NoSerialException("Error leasing serials: "+ex.getMessage());
+		}
+	}
+
+	public void voidSerial(int serial) throws IllegalArgumentException {
+		voidSerial(serial, System.currentTimeMillis());
+	}
+
+	void voidSerial(int serial, long now) throws IllegalArgumentException {
+		try {
+			coordinator.voidSerial(serial, now);
+		} catch (IOException ex) {
+			/* Can't tell whether it was voided before, so it isn't taken */
+			logger.log(Level.SEVERE, "Error voiding serial "+serial, ex);
+			throw new IllegalArgumentException("Error voiding serial");
+		}
+	}
+
+	/* Returns the number of leases the coordinator dropped */
+	public int expire(long now) {
+		try {
+			return coordinator.expire(now);
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Error expiring serial leases", ex);
+			return 0;
+		}
+	}
+
+	public void close() throws IOException {
+		coordinator.close();
+	}
+}
@@ -0,0 +1,145 @@
+package net.jaseg.udpcraft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LeasedSignatureDataStoreTest {
+	private static final int LEASE = 100;
+	private static final long LEASE_MILLIS = 1000;
+	private static final long LIFETIME = 10000;
+	private static final Logger logger = Logger.getLogger("LeasedSignatureDataStoreTest");
+	private static final KeyParameter secret = new KeyParameter(new byte[32]);
+
+	private File dir;
+	private LeasedSignatureDataStore a, b;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("udpcraft").toFile();
+		a = open();
+		b = open();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		a.close();
+		b.close();
+		for (File g : dir.listFiles())
+			g.delete();
+		dir.delete();
+	}
+
+	private LeasedSignatureDataStore open() throws IOException {
+		return new LeasedSignatureDataStore(logger, secret, new FileSerialCoordinator(dir, 64, LIFETIME), LEASE, LEASE_MILLIS);
+	}
+
+	private static void assertRejected(LeasedSignatureDataStore s, int serial, long now) {
+		try {
+			s.voidSerial(serial, now);
+			fail("Serial "+serial+" accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void testDisjoint() {
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int i=0; i<1000; i++) {
+			assertTrue(seen.add(a.nextSerial(0)));
+			for (int j=0; j<3; j++)
+				assertTrue(seen.add(b.nextSerial(0)));
+		}
+	}
+
+	@Test
+	public void testVoidAnywhere() {
+		int x = a.nextSerial(0);
+		int y = b.nextSerial(0);
+		b.voidSerial(x, 10);
+		assertRejected(a, x, 10);
+		assertRejected(b, x, 10);
+		a.voidSerial(y, 10);
+		assertRejected(b, y, 10);
+		/* Nobody leased these yet */
+		assertRejected(a, 100000, 10);
+		assertRejected(b, -1, 10);
+	}
+
+	@Test
+	public void testExpiry() throws IOException {
+		int x = a.nextSerial(0);
+		int y = a.nextSerial(0);
+		/* A new lease once the old one is over, the rest of the old one is never issued */
+		int z = a.nextSerial(LEASE_MILLIS);
+		assertTrue(z - y > 1);
+
+		b.voidSerial(x, LEASE_MILLIS + LIFETIME);
+		assertRejected(b, y, LEASE_MILLIS + LIFETIME + 1);
+		a.voidSerial(z, LEASE_MILLIS + LIFETIME + 1);
+
+		/* Two blocks of 64 for the first lease of 100, the second one is still good */
+		assertEquals(2, b.expire(LEASE_MILLIS + LIFETIME + 1));
+		assertEquals(0, a.expire(LEASE_MILLIS + LIFETIME + 1));
+		assertRejected(a, y, 0);
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		int x = a.nextSerial(0);
+		a.close();
+		a = open();
+		assertTrue(a.nextSerial(0) >= x + LEASE);
+		b.voidSerial(x, 0);
+		assertRejected(a, x, 0);
+	}
+
+	@Test
+	public void testLeaseFailure() throws IOException {
+		FileSerialCoordinator real = new FileSerialCoordinator(dir, 64, LIFETIME);
+		boolean down[] = { false };
+		SerialCoordinator flaky = new SerialCoordinator() {
+			public int lease(int count, long until) throws IOException {
+				if (down[0])
+					throw new IOException("Coordinator down");
+				return real.lease(count, until);
+			}
+
+			public void voidSerial(int serial, long now) throws IOException {
+				real.voidSerial(serial, now);
+			}
+
+			public int expire(long now) throws IOException {
+				return real.expire(now);
+			}
+
+			public void close() throws IOException {
+				real.close();
+			}
+		};
+		LeasedSignatureDataStore c = new LeasedSignatureDataStore(logger, secret, flaky, LEASE, LEASE_MILLIS);
+		int x = c.nextSerial(0);
+		down[0] = true;
+		try {
+			c.nextSerial(LEASE_MILLIS);
+			fail("Serial issued without a lease");
+		} catch (SignatureDataStore.NoSerialException ex) {
+		}
+		/* Tries again next time */
+		down[0] = false;
+		assertTrue(c.nextSerial(LEASE_MILLIS) - x >= LEASE);
+		c.close();
+	}
+}
@@ -0,0 +1,71 @@
+package net.jaseg.udpcraft;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Small bounded map that throws out whatever was used least recently, and counts how often it was any use. A capacity
+ * of zero turns it into a very elaborate way of counting misses. */
+public class LruCache<K, V> {
+	private final String name;
+	private final int capacity;
+	private final LinkedHashMap<K, V> map;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	@SuppressWarnings("serial")
+	public LruCache(String name, final int capacity) {
+		this.name = name;
+		this.capacity = capacity;
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public V get(K key) {
+		V v = null;
+		if (capacity > 0) {
+			synchronized (this) {
+				v = map.get(key);
+			}
+		}
+		(v != null ? hits : misses).increment();
+		return v;
+	}
+
+	public void put(K key, V value) {
+		if (capacity > 0) {
+			synchronized (this) {
+				map.put(key, value);
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public double hitRate() {
+		long h = hits(), total = h + misses();
+		return total == 0 ? 0.0 : (double)h / total;
+	}
+
+	public String toString() {
+		return String.format("%s: %d hits, %d misses (%.1f%%), %d/%d entries",
+				name, hits(), misses(), 100*hitRate(), size(), capacity);
+	}
+}
@@ -0,0 +1,114 @@
+package net.jaseg.udpcraft;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.macs.SipHash;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/* MACs that KeyRing keys can use, looked up by the name given in the config. Anything BouncyCastle has or that can be
+ * wrapped into its Mac interface will do, see register().
+ *
+ *   HMAC-SHA256      what the legacy format uses
+ *   HMAC-SHA256-128  the same, truncated to 16 bytes
+ *   BLAKE2b-256      keyed BLAKE2b, a good deal faster than HMAC for the same security
+ *   SipHash-2-4      8 bytes and very cheap. Only for links where nobody has a reason to spend a few thousand CPU years
+ *                    on forging a stack of cobblestone. */
+public class MacAlgorithm {
+	private static final Map<String, MacAlgorithm> registry = new ConcurrentHashMap<String, MacAlgorithm>();
+
+	public static final MacAlgorithm HMAC_SHA256 = register(
+			new MacAlgorithm("HMAC-SHA256", 32, 32, () -> new HMac(new SHA256Digest())));
+	public static final MacAlgorithm HMAC_SHA256_128 = register(
+			new MacAlgorithm("HMAC-SHA256-128", 32, 16, () -> new HMac(new SHA256Digest())));
+	public static final MacAlgorithm BLAKE2B_256 = register(
+			new MacAlgorithm("BLAKE2b-256", 32, 32, () -> new Blake2bMac(32)));
+	public static final MacAlgorithm SIPHASH_2_4 = register(
+			new MacAlgorithm("SipHash-2-4", 16, 8, () -> new SipHash(2, 4)));
+
+	public final String name;
+	/* Bytes of key the Mac wants in init() */
+	public final int keyLength;
+	/* Bytes of MAC that go on the wire. May be less than the Mac produces, the rest is cut off. */
+	public final int length;
+	private final Supplier<Mac> factory;
+
+	public MacAlgorithm(String name, int keyLength, int length, Supplier<Mac> factory) {
+		if (keyLength < 1 || keyLength > 32)
+			throw new IllegalArgumentException("Key length "+keyLength+" out of range");
+		this.name = name;
+		this.keyLength = keyLength;
+		this.length = length;
+		this.factory = factory;
+	}
+
+	/* A fresh, uninitialized instance */
+	public Mac create() {
+		Mac mac = factory.get();
+		if (mac.getMacSize() < length)
+			throw new IllegalArgumentException(name+" produces "+mac.getMacSize()+" bytes, not "+length);
+		return mac;
+	}
+
+	public static MacAlgorithm register(MacAlgorithm alg) {
+		if (registry.putIfAbsent(alg.name, alg) != null)
+			throw new IllegalArgumentException("MAC algorithm "+alg.name+" already registered");
+		return alg;
+	}
+
+	public static MacAlgorithm forName(String name) throws IllegalArgumentException {
+		MacAlgorithm alg = registry.get(name);
+		if (alg == null)
+			throw new IllegalArgumentException("Unknown MAC algorithm "+name);
+		return alg;
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	/* Keyed BLAKE2b is a MAC all by itself, it just needs a bit of glue. doFinal() leaves the digest keyed and ready for
+	 * the next message like HMac does. */
+	private static class Blake2bMac implements Mac {
+		private final int size;
+		private Blake2bDigest digest;
+
+		Blake2bMac(int size) {
+			this.size = size;
+		}
+
+		public void init(CipherParameters params) {
+			digest = new Blake2bDigest(((KeyParameter)params).getKey(), size, null, null);
+		}
+
+		public String getAlgorithmName() {
+			return "BLAKE2b-"+(size*8);
+		}
+
+		public int getMacSize() {
+			return size;
+		}
+
+		public void update(byte in) {
+			digest.update(in);
+		}
+
+		public void update(byte in[], int off, int len) {
+			digest.update(in, off, len);
+		}
+
+		public int doFinal(byte out[], int off) {
+			return digest.doFinal(out, off);
+		}
+
+		public void reset() {
+			digest.reset();
+		}
+	}
+}
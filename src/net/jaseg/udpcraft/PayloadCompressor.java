@@ -0,0 +1,115 @@
+package net.jaseg.udpcraft;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* zlib compression for signed item messages with a preset dictionary of the stuff Bukkit's YAML serialization keeps
+ * repeating. A single item is far too short for plain DEFLATE to find much redundancy in, but most of it is in the
+ * dictionary.
+ *
+ * Transports negotiate this per connection and then run whole ItemMessage.serialize() outputs through it, so the
+ * signature is computed over the uncompressed message just like before. The dictionary is part of the protocol. Never
+ * change it, add a new one under a new name instead. zlib puts the dictionary's Adler-32 in the stream header, so a
+ * peer using a different one fails loudly instead of producing garbage. */
+public class PayloadCompressor {
+	public static final String NAME = "DEFLATE";
+
+	/* Inflating past this is somebody trying to blow up our heap */
+	public static final int MAX_DECOMPRESSED_LEN = 1024*1024;
+
+	/* Names and keys as Bukkit 1.12 serializes them. Most frequent stuff goes last, zlib reaches that with the shortest
+	 * distances. */
+	private static final byte DICTIONARY[] = (
+			"WOOD_STONE_IRON_GOLD_DIAMOND_LEATHER_CHAINMAIL_"
+			+ "SWORD_PICKAXE_SPADE_AXE_HOE_HELMET_CHESTPLATE_LEGGINGS_BOOTS_BOW_ELYTRA_SHIELD_FISHING_ROD_"
+			+ "PROTECTION_ENVIRONMENTAL PROTECTION_FIRE PROTECTION_PROJECTILE PROTECTION_EXPLOSIONS PROTECTION_FALL "
+			+ "OXYGEN WATER_WORKER THORNS DEPTH_STRIDER FROST_WALKER SWEEPING_EDGE "
+			+ "DAMAGE_ALL DAMAGE_UNDEAD DAMAGE_ARTHROPODS KNOCKBACK FIRE_ASPECT LOOT_BONUS_MOBS LOOT_BONUS_BLOCKS "
+			+ "DIG_SPEED SILK_TOUCH ARROW_DAMAGE ARROW_KNOCKBACK ARROW_FIRE ARROW_INFINITE LUCK LURE "
+			+ "BINDING_CURSE VANISHING_CURSE DURABILITY MENDING "
+			+ "WHITE_ORANGE_MAGENTA_LIGHT_BLUE_YELLOW_LIME_PINK_GRAY_SILVER_CYAN_PURPLE_BLUE_BROWN_GREEN_RED_BLACK_SHULKER_BOX "
+			+ "ENCHANTED_BOOK WRITTEN_BOOK BOOK_AND_QUILL SKULL_ITEM MONSTER_EGG FIREWORK_CHARGE TIPPED_ARROW "
+			+ "LINGERING_POTION SPLASH_POTION POTION "
+			+ "minecraft:long_ minecraft:strong_ healing regeneration swiftness strength fire_resistance night_vision "
+			+ "\n    custom-effects:\n    - ==: PotionEffect\n      effect: \n      duration: \n      amplifier: "
+			+ "\n      ambient: false\n      has-particles: true"
+			+ "\n    firework-effects:\n    - ==: Firework\n      flicker: \n      trail: \n      colors:\n      fade-colors:"
+			+ "\n      type: BALL\n    power: "
+			+ "\n    base-color: \n    patterns:\n    - ==: Pattern\n      color: \n      pattern: "
+			+ "\n    skull-owner: \n    meta-type: SKULL\n    meta-type: BANNER\n    meta-type: FIREWORK"
+			+ "\n    color:\n      ==: Color\n      RED: \n      BLUE: \n      GREEN: \n    meta-type: LEATHER_ARMOR"
+			+ "\n    meta-type: POTION\n    potion-type: minecraft:"
+			+ "\n    meta-type: TILE_ENTITY\n    internal: H4sIAAAAAAAAA\n    blockMaterial: "
+			+ "\n    meta-type: BOOK_SIGNED\n    title: \n    author: \n    pages:\n    - \n    generation: 0"
+			+ "\n    meta-type: ENCHANTED\n    stored-enchants:\n      "
+			+ "\n    Unbreakable: true\n    ItemFlags:\n    - HIDE_ENCHANTS\n    - HIDE_ATTRIBUTES"
+			+ "\n    repair-cost: \n    display-name: \u00a7\n    lore:\n    - \u00a7"
+			+ "\n    enchants:\n      "
+			+ "item:\n  ==: org.bukkit.inventory.ItemStack\n  type: \n  damage: \n  amount: \n"
+			+ "  meta:\n    ==: ItemMeta\n    meta-type: UNSPECIFIC\n"
+			).getBytes(StandardCharsets.UTF_8);
+
+	/* Deflater and Inflater hold on to native zlib state that is expensive to set up, so keep one per thread */
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater());
+
+	/* ItemMessage encoding of the compressed signed message, for transports that want to cache it */
+	public static final ItemMessage.Encoding ENCODING = new ItemMessage.Encoding() {
+		public ByteBuffer encode(ItemMessage msg) {
+			return ByteBuffer.wrap(compress(msg.serialize()));
+		}
+	};
+
+	public static byte[] compress(byte in[]) {
+		Deflater def = deflaters.get();
+		def.reset();
+		def.setDictionary(DICTIONARY);
+		def.setInput(in);
+		def.finish();
+
+		/* Incompressible input grows by a few bytes per 16k block plus the zlib header and trailer */
+		byte buf[] = new byte[in.length + in.length/1000 + 64];
+		int len = 0;
+		while (!def.finished()) {
+			if (len == buf.length)
+				buf = Arrays.copyOf(buf, 2*buf.length);
+			len += def.deflate(buf, len, buf.length-len);
+		}
+		return Arrays.copyOf(buf, len);
+	}
+
+	public static byte[] decompress(byte in[]) throws IllegalArgumentException {
+		Inflater inf = inflaters.get();
+		inf.reset();
+		inf.setInput(in);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(4*in.length, MAX_DECOMPRESSED_LEN));
+		byte buf[] = new byte[4096];
+		try {
+			while (!inf.finished()) {
+				int n = inf.inflate(buf);
+				if (n == 0) {
+					if (inf.needsDictionary()) {
+						try {
+							inf.setDictionary(DICTIONARY);
+						} catch (IllegalArgumentException ex) {
+							throw new IllegalArgumentException("Compressed with a different dictionary");
+						}
+					} else if (inf.needsInput() && !inf.finished())
+						throw new IllegalArgumentException("Truncated compressed message");
+				}
+				if (out.size() + n > MAX_DECOMPRESSED_LEN)
+					throw new IllegalArgumentException("Compressed message too large");
+				out.write(buf, 0, n);
+			}
+		} catch (DataFormatException ex) {
+			throw new IllegalArgumentException("Invalid compressed message");
+		}
+		return out.toByteArray();
+	}
+}
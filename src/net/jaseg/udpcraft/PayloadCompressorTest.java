@@ -0,0 +1,168 @@
+package net.jaseg.udpcraft;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+	/* What Bukkit 1.12 puts into ItemMessage for a few typical stacks, the kinds that go out as YAML first */
+	static final String enchantedSword =
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: DIAMOND_SWORD\n"
+		+ "  damage: 12\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: UNSPECIFIC\n"
+		+ "    display-name: \u00a76Excalibur\n"
+		+ "    enchants:\n"
+		+ "      DAMAGE_ALL: 5\n"
+		+ "      FIRE_ASPECT: 2\n"
+		+ "      LOOT_BONUS_MOBS: 3\n"
+		+ "      DURABILITY: 3\n"
+		+ "      MENDING: 1\n"
+		+ "    repair-cost: 31\n";
+
+	static final String samples[] = {
+		enchantedSword,
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: IRON_INGOT\n"
+		+ "  amount: 32\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: UNSPECIFIC\n"
+		+ "    display-name: \u00a76Shiny Ingot\n"
+		+ "    lore:\n"
+		+ "    - \u00a77Smelted with care\n"
+		+ "    - \u00a77in the nether\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: DIAMOND_CHESTPLATE\n"
+		+ "  damage: 40\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: UNSPECIFIC\n"
+		+ "    enchants:\n"
+		+ "      PROTECTION_ENVIRONMENTAL: 4\n"
+		+ "      THORNS: 3\n"
+		+ "      DURABILITY: 3\n"
+		+ "    repair-cost: 7\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: ENCHANTED_BOOK\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: ENCHANTED\n"
+		+ "    stored-enchants:\n"
+		+ "      SILK_TOUCH: 1\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: WRITTEN_BOOK\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: BOOK_SIGNED\n"
+		+ "    title: Shopping list\n"
+		+ "    author: jaseg\n"
+		+ "    pages:\n"
+		+ "    - 64 cobblestone, 20 iron, a saddle\n"
+		+ "    - and something to eat\n"
+		+ "    generation: 0\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: SPLASH_POTION\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: POTION\n"
+		+ "    potion-type: minecraft:strong_healing\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: LEATHER_HELMET\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: LEATHER_ARMOR\n"
+		+ "    color:\n"
+		+ "      ==: Color\n"
+		+ "      RED: 160\n"
+		+ "      BLUE: 64\n"
+		+ "      GREEN: 101\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: SKULL_ITEM\n"
+		+ "  damage: 3\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: SKULL\n"
+		+ "    skull-owner: jaseg\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: PURPLE_SHULKER_BOX\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: TILE_ENTITY\n"
+		+ "    internal: H4sIAAAAAAAAAG3OvQrCMBSG4a/VimbQRfE2nJ3En8FZ95LGNA1NciA9Bb17C61U0PnlgVcAAsujI1VfAlt+3aVZILuy9o0AMEkwvTlizJHaBzbeBq2iLHmvqCicbpiCTpCdqA18SDE7Sy+N7uQAkx6uR2gjhdwG07XBbf+4tHer0TFFVX3I7pv8vDVV62od84KewBtwto7f4wAAAA==\n"
+		+ "    blockMaterial: PURPLE_SHULKER_BOX\n",
+
+		"item:\n"
+		+ "  ==: org.bukkit.inventory.ItemStack\n"
+		+ "  type: GOLD_SPADE\n"
+		+ "  damage: 3\n"
+		+ "  meta:\n"
+		+ "    ==: ItemMeta\n"
+		+ "    meta-type: UNSPECIFIC\n"
+		+ "    enchants:\n"
+		+ "      DIG_SPEED: 5\n"
+		+ "      SILK_TOUCH: 1\n"
+		+ "    Unbreakable: true\n",
+	};
+
+	@Test
+	public void testRoundTrip() {
+		byte in[] = enchantedSword.getBytes(StandardCharsets.UTF_8);
+		byte out[] = PayloadCompressor.compress(in);
+		assertTrue("Only got "+in.length+" -> "+out.length, out.length*3 < in.length);
+		assertArrayEquals(in, PayloadCompressor.decompress(out));
+		assertArrayEquals(new byte[0], PayloadCompressor.decompress(PayloadCompressor.compress(new byte[0])));
+	}
+
+	@Test
+	public void testRatio() {
+		int in = 0, out = 0;
+		for (String sample : samples) {
+			byte data[] = sample.getBytes(StandardCharsets.UTF_8);
+			byte compressed[] = PayloadCompressor.compress(data);
+			assertArrayEquals(data, PayloadCompressor.decompress(compressed));
+			in += data.length;
+			out += compressed.length;
+		}
+		assertTrue("Only got "+in+" -> "+out, out*3 < in);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testTruncated() {
+		byte out[] = PayloadCompressor.compress(enchantedSword.getBytes(StandardCharsets.UTF_8));
+		PayloadCompressor.decompress(Arrays.copyOf(out, out.length-4));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testGarbage() {
+		PayloadCompressor.decompress(enchantedSword.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBomb() {
+		PayloadCompressor.decompress(PayloadCompressor.compress(new byte[PayloadCompressor.MAX_DECOMPRESSED_LEN+1]));
+	}
+}
@@ -1,6 +1,7 @@
 package net.jaseg.udpcraft;
 
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -84,17 +85,26 @@ public class Portal {
 						Inventory inv = validateLocation().getBlockInventory();
 						ItemStack stacks[] = inv.getContents();
 
+						List<Integer> slots = new ArrayList<Integer>();
+						List<ItemStack> batch = new ArrayList<ItemStack>();
 						for (int i=0; i<stacks.length-MATERIAL_TEMPLATE.length; i++) {
 							if (stacks[i] != null) {
-								if (emitItem(stacks[i]))
-									stacks[i] = null;
+								slots.add(i);
+								batch.add(stacks[i]);
 							}
 						}
 						
+						int sent = emitItems(batch);
+						for (int i=0; i<sent; i++)
+							stacks[slots.get(i)] = null;
+						
 						inv.setContents(stacks);
 					} catch(InvalidLocationException ex) {
 						plugin.unregisterPortal(Portal.this);
-					} 
+					} catch(RuntimeException ex) {
+						/* Stacks stay in the chest. This runs on the timer every portal shares, which must not die. */
+						logger.log(Level.SEVERE, "Error flushing portal "+name, ex);
+					}
 				}
 			}
 		};
@@ -134,7 +144,42 @@ public class Portal {
 		return listener != null && listener.emitMessage(this, msg);
 	}
 	
-	public void receiveMessage(ItemMessage msg) throws InvalidLocationException {
+	/* Returns how many stacks from the front of the list were sent off */
+	public int emitItems(List<ItemStack> stacks) {
+		logger.log(Level.INFO, "Emitting "+stacks.size()+" messages from "+name);
+		if (listener == null || stacks.isEmpty())
+			return 0;
+		List<ItemMessage> msgs = new ArrayList<ItemMessage>();
+		for (ItemStack stack : stacks)
+			msgs.add(new ItemMessage(plugin, name, stack));
+		return listener.emitMessages(this, msgs);
+	}
+	
+	/* Puts back a stack a listener took from us but couldn't deliver. If the message might have been received after all,
+	 * the stack stays gone. */
+	public synchronized boolean returnMessage(ItemMessage msg) {
+		if (!msg.revoke()) {
+			logger.log(Level.INFO, "Message from "+name+" was received after all, not returning it");
+			return false;
+		}
+		try {
+			Inventory inventory = validateLocation().getBlockInventory();
+			HashMap<Integer, ItemStack> excess = inventory.addItem(msg.getStack());
+			if (!excess.isEmpty()) {
+				logger.log(Level.INFO, "No room to return stack to "+name);
+				emitItem(excess.get(0));
+			}
+			return true;
+		} catch (InvalidLocationException ex) {
+			logger.log(Level.WARNING, "Could not return stack to "+name+", portal is gone");
+			plugin.unregisterPortal(this);
+			return false;
+		}
+	}
+	
+	/* Called from any number of worker threads at once. The chest only ever sees one of them at a time, and never in the
+	 * middle of a flush. */
+	public synchronized void receiveMessage(ItemMessage msg) throws InvalidLocationException {
 		logger.log(Level.INFO, "Received message at", name);
 		Chest state = validateLocation();
 		if (state == null)
@@ -225,9 +225,28 @@ public class PortalTest {
 	}
 	
 	@Test
+	public void testReturnMessage() throws Portal.InvalidLocationException {
+		setUp(null);
+		when(inventory.addItem(any())).thenReturn(new HashMap<Integer, ItemStack>());
+		ItemMessage msg = mock(ItemMessage.class);
+		ItemStack stack = mockStack(Material.WOOD, 64);
+		when(msg.getStack()).thenReturn(stack);
+
+		/* Received after all, so it must not come back */
+		when(msg.revoke()).thenReturn(false);
+		assertEquals(false, portal.returnMessage(msg));
+		verify(inventory, times(0)).addItem(any());
+
+		when(msg.revoke()).thenReturn(true);
+		assertEquals(true, portal.returnMessage(msg));
+		verify(inventory, times(1)).addItem(eq(stack));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
 	public void testQueueUpdate() throws Portal.InvalidLocationException{
 		listener = mock(ItemListener.class);
-		when(listener.emitMessage(any(), any())).thenReturn(true);
+		when(listener.emitMessages(any(), any())).thenAnswer(inv -> ((List<ItemMessage>)inv.getArguments()[1]).size());
 		setUp(new String[]{"#!/udpportal\nname: testportal\ndirection: in"});
 		portal.queueUpdate();
 		verify(timer, times(0)).schedule(any(), any());
@@ -246,9 +265,12 @@ public class PortalTest {
 		verify(timer, times(1)).schedule(taskCap.capture(), eq(100L));
 		taskCap.getValue().run();
 		
-		ArgumentCaptor<ItemMessage> msgCap = ArgumentCaptor.forClass(ItemMessage.class);
-		verify(listener, times(3)).emitMessage(eq(portal), msgCap.capture());
-		List<ItemMessage> msgs = msgCap.getAllValues();
+		/* The whole flush goes out as a single batch */
+		@SuppressWarnings("unchecked")
+		ArgumentCaptor<List<ItemMessage>> msgCap = ArgumentCaptor.forClass((Class<List<ItemMessage>>)(Class<?>)List.class);
+		verify(listener, times(1)).emitMessages(eq(portal), msgCap.capture());
+		List<ItemMessage> msgs = msgCap.getValue();
+		assertEquals(3, msgs.size());
 		assertEquals(bak0, msgs.get(0).getStack());
 		assertEquals(bak1, msgs.get(1).getStack());
 		assertEquals(baklast, msgs.get(2).getStack());
@@ -264,4 +286,25 @@ public class PortalTest {
 		
 		/* FIXME: add concurrency stuff here */
 	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testQueueUpdatePartial() throws Portal.InvalidLocationException{
+		/* Stacks the listener did not take must stay in the chest */
+		listener = mock(ItemListener.class);
+		when(listener.emitMessages(any(), any())).thenReturn(1);
+		ItemStack items[] = makeItems(27, new Material[]{Material.WOOD, Material.APPLE}, new int[]{23, 42}, Portal.MATERIAL_TEMPLATE, null);
+		items[items.length-5] = makeBook(new String[]{"#!/udpportal\nname: testportal"});
+		ItemStack bak1 = items[1];
+		setUpTail(items);
+		portal.queueUpdate();
+		ArgumentCaptor<TimerTask> taskCap = ArgumentCaptor.forClass(TimerTask.class);
+		verify(timer, times(1)).schedule(taskCap.capture(), eq(100L));
+		taskCap.getValue().run();
+		
+		ArgumentCaptor<ItemStack[]> itemsCap = ArgumentCaptor.forClass(ItemStack[].class);
+		verify(inventory, times(1)).setContents(itemsCap.capture());
+		assertEquals(null, itemsCap.getValue()[0]);
+		assertEquals(bak1, itemsCap.getValue()[1]);
+	}
 }
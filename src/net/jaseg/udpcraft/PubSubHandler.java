@@ -1,8 +1,40 @@
 package net.jaseg.udpcraft;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 public interface PubSubHandler extends ItemListener {
 	void subscribe(String portal, String password, ItemListener listener) throws IllegalArgumentException;
 	void unsubscribe(String portal, ItemListener listener) throws IllegalArgumentException;
+	/* Drops all subscriptions of a listener whose connection went away */
+	default void unsubscribeAll(ItemListener listener) {}
+	/* Lets a subscribed listener receive n more items from a portal. Listeners that never do this get everything. */
+	default void credit(String portal, ItemListener listener, int n) throws IllegalArgumentException {
+		throw new IllegalArgumentException("Flow control not supported");
+	}
 	boolean emitMessage(Portal portal, ItemMessage msg) throws IllegalArgumentException;
 	void submit(String portal, byte msg[]) throws IllegalArgumentException;
+	/* msg is the message between its position and limit, usually a slice of some network buffer that is only valid
+	 * until this returns */
+	default void submit(String portal, ByteBuffer msg) throws IllegalArgumentException {
+		byte data[] = new byte[msg.remaining()];
+		msg.duplicate().get(data);
+		submit(portal, data);
+	}
+
+	/* Returns the indices of all rejected messages. null entries in msgs are rejected right away. */
+	default List<Integer> submitBatch(String portal, List<byte[]> msgs) throws IllegalArgumentException {
+		List<Integer> failed = new ArrayList<Integer>();
+		for (int i=0; i<msgs.size(); i++) {
+			try {
+				if (msgs.get(i) == null)
+					throw new IllegalArgumentException("Invalid message");
+				submit(portal, msgs.get(i));
+			} catch (IllegalArgumentException ex) {
+				failed.add(i);
+			}
+		}
+		return failed;
+	}
 }
@@ -0,0 +1,269 @@
+package net.jaseg.udpcraft;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/* Keeps a SerialWindow on disk so that neither a restart nor a crash reissues a serial or takes a replay.
+ *
+ * The hot path only ever touches a memory mapped file:
+ *
+ *   [s32 magic] [s32 version] [s32 lease end] ...padding to 4k... [s32 serial, s32 ~serial]...
+ *
+ * Serials are leased in blocks of LEASE_BLOCK. Before a serial beyond the lease goes out, the lease end is moved up and
+ * forced to disk, which costs one msync per block. After a crash we just continue at the lease end. The serials in
+ * between that may or may not have gone out count as issued when we come back up, so items sent right before the crash
+ * still arrive and the rest expires in due time.
+ *
+ * Every void appends a record to the journal after the header. The journal has two halves, voids go to the active one.
+ * Each void claims its own slot, so concurrent voids don't wait for each other and may finish out of order. A record is
+ * only valid if its second half is the complement of the first, replay skips torn and zeroed ones. When the active half
+ * is full and the other one is empty, the void that noticed switches halves and carries on over there.
+ *
+ * Once in a while, and whenever checkpointDue() says a full half is waiting, the whole window goes to a checkpoint file
+ * next to it (written to a temporary file and renamed over the old one). A checkpoint first gets voids off the half it is
+ * about to empty and waits for the ones still writing to it, so everything in there is in the window it then saves. That
+ * half is zeroed once the checkpoint is in place. Replay goes through both halves, and replaying a void that is already
+ * in the checkpoint does nothing, so there is no order to get wrong between the two. Only with both halves full does a
+ * void have nowhere to go before the next checkpoint.
+ *
+ * Writes to the mapping survive the process dying right away. Surviving the whole machine going down only holds for
+ * what was forced, which is the lease end and everything up to the last checkpoint.
+ *
+ * issued() and voided() may be called from any thread. Checkpoints take turns. */
+public class ReplayStateFile implements Closeable {
+	public static final int LEASE_BLOCK = 4096;
+	/* Per half */
+	public static final int JOURNAL_RECORDS = 32768;
+
+	private static final int MAGIC = 0x55445253; /* "UDRS" */
+	private static final int CHECKPOINT_MAGIC = 0x55445243; /* "UDRC" */
+	private static final int VERSION = 1;
+	private static final int OFF_MAGIC = 0, OFF_VERSION = 4, OFF_LEASE = 8;
+	private static final int JOURNAL = 4096;
+	private static final int SIZE = JOURNAL + 2*JOURNAL_RECORDS*8;
+
+	private final Logger logger;
+	private final File checkpointFile;
+	private final long bucketMillis;
+	private final long maxLifetimeMillis;
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private SerialWindow window;
+	private volatile int leaseEnd;
+	private final Object leaseLock = new Object(); /* not this, so issuing never waits for a checkpoint */
+	private final Object halfLock = new Object(); /* switching halves, same reason */
+	private volatile int active;
+	private final AtomicIntegerArray records = new AtomicIntegerArray(2);
+	private final AtomicIntegerArray writing = new AtomicIntegerArray(2);
+
+	/* initial is only asked for when there is no state file yet, e.g. to import what the config had */
+	public ReplayStateFile(Logger logger, File file, long bucketMillis, long maxLifetimeMillis, Supplier<SerialWindow> initial)
+			throws IOException {
+		this.logger = logger;
+		this.checkpointFile = new File(file.getPath()+".checkpoint");
+		this.bucketMillis = bucketMillis;
+		this.maxLifetimeMillis = maxLifetimeMillis;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		try {
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+			if (map.getInt(OFF_MAGIC) == 0) {
+				window = initial.get();
+				leaseEnd = window.next();
+				map.putInt(OFF_VERSION, VERSION);
+				map.putInt(OFF_LEASE, leaseEnd);
+				save();
+				/* Last, so a crash before this point just starts over */
+				map.putInt(OFF_MAGIC, MAGIC);
+				map.force();
+			} else {
+				if (map.getInt(OFF_MAGIC) != MAGIC || map.getInt(OFF_VERSION) != VERSION)
+					throw new IOException(file+" is not a replay state file");
+				recover();
+			}
+		} catch (IOException|RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private void recover() throws IOException {
+		leaseEnd = map.getInt(OFF_LEASE);
+		try {
+			window = readCheckpoint();
+		} catch (IOException|IllegalArgumentException ex) {
+			/* Starting over at the lease end rejects everything that is still out there, but never takes a replay */
+			logger.log(Level.SEVERE, "Error loading replay checkpoint, outstanding items are lost: "+ex.getMessage());
+			window = new SerialWindow(leaseEnd, bucketMillis, maxLifetimeMillis);
+		}
+
+		int unaccounted = leaseEnd - window.next();
+		if (unaccounted > 0)
+			window.issue(unaccounted, System.currentTimeMillis());
+		int replayed = 0;
+		for (int i=0; i<2*JOURNAL_RECORDS; i++) {
+			int serial = map.getInt(JOURNAL + i*8);
+			if (map.getInt(JOURNAL + i*8 + 4) == ~serial && window.clear(serial))
+				replayed++;
+		}
+		logger.log(Level.INFO, "Recovered replay state up to serial "+leaseEnd+", "+replayed+" voids replayed from journal, "
+				+(unaccounted > 0 ? unaccounted : 0)+" serials of the last lease counted as issued");
+		/* Twice, for a clean slate in both halves */
+		checkpoint();
+		checkpoint();
+	}
+
+	private SerialWindow readCheckpoint() throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+			if (in.readInt() != CHECKPOINT_MAGIC)
+				throw new IOException(checkpointFile+" is not a replay checkpoint");
+			int len = in.readInt();
+			if (len < 0 || len > checkpointFile.length())
+				throw new IOException("Corrupt replay checkpoint");
+			byte data[] = new byte[len];
+			in.readFully(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if (in.readInt() != (int)crc.getValue())
+				throw new IOException("Replay checkpoint checksum mismatch");
+			return SerialWindow.fromBytes(data, bucketMillis, maxLifetimeMillis);
+		}
+	}
+
+	/* The window as it was when we went down. Issue and void on it directly, then tell us with issued() and voided(). */
+	public SerialWindow window() {
+		return window;
+	}
+
+	public int leaseEnd() {
+		return leaseEnd;
+	}
+
+	/* Call after issuing serials up to end and before handing them out. Extends the lease if they go beyond it. */
+	public void issued(int end) {
+		if (end - leaseEnd > 0)
+			extendLease(end);
+	}
+
+	private void extendLease(int end) {
+		synchronized (leaseLock) {
+			if (end - leaseEnd > 0) {
+				int to = window.next() + LEASE_BLOCK;
+				map.putInt(OFF_LEASE, to);
+				map.force();
+				leaseEnd = to;
+			}
+		}
+	}
+
+	/* Journals a void. Returns false if both journal halves are full, which needs a checkpoint() to make room. */
+	public boolean voided(int serial) {
+		for (;;) {
+			int h = active;
+			writing.incrementAndGet(h);
+			try {
+				/* A checkpoint is switching halves, it has to see us either before or not at all */
+				if (active != h)
+					continue;
+				int slot = records.getAndIncrement(h);
+				if (slot < JOURNAL_RECORDS) {
+					int off = JOURNAL + (h*JOURNAL_RECORDS + slot)*8;
+					map.putInt(off, serial);
+					map.putInt(off + 4, ~serial);
+					return true;
+				}
+			} finally {
+				writing.decrementAndGet(h);
+			}
+			if (!switchFrom(h))
+				return false;
+		}
+	}
+
+	/* Moves voids over to the other half if it is empty. True if they are not on h anymore. */
+	private boolean switchFrom(int h) {
+		synchronized (halfLock) {
+			if (active == h) {
+				if (records.get(1 - h) != 0)
+					return false;
+				active = 1 - h;
+			}
+			return true;
+		}
+	}
+
+	/* True once voids filled up a half and moved on to the other one, which leaves a single half until the next checkpoint.
+	 * Cheap enough to ask after every void. */
+	public boolean checkpointDue() {
+		return records.get(1 - active) >= JOURNAL_RECORDS;
+	}
+
+	/* Writes the whole window out and empties a journal half. That is the one a void already switched away from if there
+	 * is one, otherwise the active one, and voids go to the other half from here on. */
+	public synchronized void checkpoint() throws IOException {
+		int h;
+		synchronized (halfLock) {
+			h = active;
+			if (records.get(1 - h) != 0)
+				h = 1 - h;
+			else
+				active = 1 - h;
+		}
+		while (writing.get(h) != 0)
+			Thread.yield();
+
+		save();
+		for (int i=0; i<JOURNAL_RECORDS; i++)
+			map.putLong(JOURNAL + (h*JOURNAL_RECORDS + i)*8, 0);
+		map.force();
+		records.set(h, 0);
+	}
+
+	private void save() throws IOException {
+		byte data[] = window.toBytes();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		File tmp = new File(checkpointFile.getPath()+".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(data.length);
+			out.write(data);
+			out.writeInt((int)crc.getValue());
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* After a clean shutdown we know exactly how far we got, so give back the rest of the lease */
+	public synchronized void close() throws IOException {
+		try {
+			checkpoint();
+			synchronized (leaseLock) {
+				leaseEnd = window.next();
+				map.putInt(OFF_LEASE, leaseEnd);
+				map.force();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package net.jaseg.udpcraft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplayStateFileTest {
+	private static final long BUCKET = 100000;
+	private static final long LIFETIME = 1000000;
+	private static final Logger logger = Logger.getLogger("ReplayStateFileTest");
+
+	private File dir, f;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("udpcraft").toFile();
+		f = new File(dir, "replay.dat");
+	}
+
+	@After
+	public void tearDown() {
+		for (File g : dir.listFiles())
+			g.delete();
+		dir.delete();
+	}
+
+	private ReplayStateFile open(File f) throws IOException {
+		return new ReplayStateFile(logger, f, BUCKET, LIFETIME, () -> new SerialWindow(1000, BUCKET, LIFETIME));
+	}
+
+	@Test
+	public void testCrash() throws IOException {
+		ReplayStateFile r = open(f);
+		SerialWindow w = r.window();
+		long now = System.currentTimeMillis();
+		for (int i=0; i<100; i++) {
+			r.issued(w.issue(now) + 1);
+		}
+		for (int i=1000; i<1050; i++) {
+			w.voidSerial(i, now);
+			assertTrue(r.voided(i));
+		}
+		/* Never closed, like after a kill -9 */
+		ReplayStateFile s = open(f);
+		SerialWindow v = s.window();
+		assertEquals(r.leaseEnd(), s.leaseEnd());
+		assertEquals(s.leaseEnd(), v.next());
+		/* The rest of the lease counts as issued */
+		assertEquals(s.leaseEnd() - 1050, v.outstanding());
+		assertFalse(v.clear(1020));
+		assertTrue(v.clear(1070));
+
+		s.issued(v.issue(ReplayStateFile.LEASE_BLOCK, now) + ReplayStateFile.LEASE_BLOCK);
+		assertTrue(s.leaseEnd() - v.next() > 0);
+		s.close();
+
+		ReplayStateFile t = open(f);
+		assertEquals(v.encode(), t.window().encode());
+		t.close();
+	}
+
+	@Test
+	public void testJournal() throws IOException {
+		ReplayStateFile r = open(f);
+		SerialWindow w = r.window();
+		long now = System.currentTimeMillis();
+		int n = 2*ReplayStateFile.JOURNAL_RECORDS;
+		r.issued(w.issue(n + 10, now) + n + 10);
+		for (int i=0; i<ReplayStateFile.JOURNAL_RECORDS; i++) {
+			w.voidSerial(1000+i, now);
+			assertTrue(r.voided(1000+i));
+		}
+		assertFalse(r.checkpointDue());
+		/* Spills over into the other half */
+		for (int i=ReplayStateFile.JOURNAL_RECORDS; i<n; i++) {
+			w.voidSerial(1000+i, now);
+			assertTrue(r.voided(1000+i));
+			assertTrue(r.checkpointDue());
+		}
+		w.voidSerial(1000+n, now);
+		assertFalse(r.voided(1000+n));
+		r.checkpoint();
+		assertFalse(r.checkpointDue());
+		w.voidSerial(1001+n, now);
+		assertTrue(r.voided(1001+n));
+
+		ReplayStateFile s = open(f);
+		assertEquals(8 + ReplayStateFile.LEASE_BLOCK, s.window().outstanding());
+		s.close();
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		ReplayStateFile r = open(f);
+		SerialWindow w = r.window();
+		long now = System.currentTimeMillis();
+		r.issued(w.issue(3, now) + 3);
+		for (int i=1000; i<1003; i++) {
+			w.voidSerial(i, now);
+			r.voided(i);
+		}
+		/* Half of the last record made it */
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.seek(4096 + 2*8 + 4);
+			raf.writeInt(0);
+		}
+		ReplayStateFile s = open(f);
+		assertFalse(s.window().clear(1001));
+		assertTrue(s.window().clear(1002));
+		s.close();
+	}
+}
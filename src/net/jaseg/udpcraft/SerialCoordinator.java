@@ -0,0 +1,19 @@
+package net.jaseg.udpcraft;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/* Where servers sharing a secret get their serials from, see LeasedSignatureDataStore. All of them have to talk to the
+ * same coordinator, since it is what keeps their serials apart and decides which ones have been voided already. */
+public interface SerialCoordinator extends Closeable {
+	/* Leases at least count consecutive serials nobody was given before and returns the first. None of them may be
+	 * issued at or after until, their expiry counts from there. */
+	public int lease(int count, long until) throws IOException;
+
+	/* Voids a serial no matter which server leased it. Throws IllegalArgumentException if it was never leased, was
+	 * voided before or its lease ended more than the maximum item lifetime ago. */
+	public void voidSerial(int serial, long now) throws IOException, IllegalArgumentException;
+
+	/* Forgets leases whose serials have all expired. Returns how many it dropped. */
+	public int expire(long now) throws IOException;
+}
@@ -0,0 +1,359 @@
+package net.jaseg.udpcraft;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/* The serials we issued that have not come back yet. Serials go out in order, so this is a window [base, next) of
+ * serials that may still be voided. Every signing and verifying thread goes through here, so neither issuing nor voiding
+ * takes a lock:
+ *
+ *   issue  one getAndAdd on next
+ *   void   one CAS setting the serial's bit in a ring of voided bits, indexed by serial modulo the ring size. Threads
+ *          voiding different serials only ever meet on the same word by chance.
+ *
+ * Issue times are only kept per bucket: a bucket is a run of consecutive serials issued within bucketMillis of the first
+ * one. A serial counts as expired once maxLifetimeMillis have passed since its bucket ended, so items may live up to
+ * bucketMillis longer than maxLifetimeMillis but never shorter. Buckets are a linked list, newest first. Whoever issues
+ * the first serial after a bucket ran out swaps in a new one.
+ *
+ * Items that never come back would keep the window from moving, so expire() drops buckets off the bottom once all of
+ * their serials have expired, and skips whatever has been voided above that. It is the only thing that moves base and
+ * runs on one thread at a time, usually a timer. Words it leaves behind are zeroed for the next time around the ring, but
+ * only once base is a quarter ring past them, so a void that checked base just before it moved still lands on a word
+ * nobody reuses yet. The ring has room for twice the serials we let be outstanding at once. If issuing runs that far
+ * ahead of expire(), the oldest serials get pushed out early.
+ *
+ * The voided() and expired() counters can be off by a few while serials are voided right as they expire. */
+public class SerialWindow {
+	private static final int FORMAT = 1;
+	/* Serials in the ring by default, 512k of bitmap. Half of that may be outstanding. */
+	public static final int DEFAULT_CAPACITY = 1<<22;
+
+	private static class Bucket {
+		final int first;
+		final long start;
+		final long end; /* Nothing in here was issued later than this */
+		volatile Bucket prev;
+
+		Bucket(int first, long start, long end, Bucket prev) {
+			this.first = first;
+			this.start = start;
+			this.end = end;
+			this.prev = prev;
+		}
+	}
+
+	private final long bucketMillis;
+	private final long maxLifetimeMillis;
+
+	private final AtomicInteger next;
+	private volatile int base;
+	private final AtomicLongArray words; /* bit set = voided */
+	private final int mask;
+	private final int limit; /* most serials that may be outstanding at once */
+	private final int lag;   /* how far behind base words get zeroed */
+	private final AtomicReference<Bucket> current;
+	private final LongAdder voided = new LongAdder(), expired = new LongAdder();
+
+	public SerialWindow(int next, long bucketMillis, long maxLifetimeMillis) {
+		this(next, bucketMillis, maxLifetimeMillis, DEFAULT_CAPACITY);
+	}
+
+	/* capacity is rounded up to a power of two */
+	public SerialWindow(int next, long bucketMillis, long maxLifetimeMillis, int capacity) {
+		if (capacity < 128 || capacity > 1<<30)
+			throw new IllegalArgumentException("Serial window capacity "+capacity+" out of range");
+		int nwords = Integer.highestOneBit((capacity - 1) >>> 6) << 1;
+		this.words = new AtomicLongArray(nwords);
+		this.mask = nwords - 1;
+		this.limit = nwords * 32;
+		this.lag = nwords * 16;
+		this.base = next;
+		this.next = new AtomicInteger(next);
+		this.bucketMillis = bucketMillis;
+		this.maxLifetimeMillis = maxLifetimeMillis;
+		/* Empty and long over, so the first issue starts a real one */
+		long never = Long.MIN_VALUE/2;
+		this.current = new AtomicReference<Bucket>(new Bucket(next, never, never, null));
+	}
+
+	public int next() {
+		return next.get();
+	}
+
+	public int outstanding() {
+		int b = base, n = next.get(), count = 0;
+		for (int s = b; s - n < 0; s += 64)
+			count += Long.bitCount(~bits(s) & range(n - s));
+		return count;
+	}
+
+	/* Serials between base and next, voided or not */
+	public int span() {
+		return next.get() - base;
+	}
+
+	/* Serials that came back and ones that didn't in time, since we started */
+	public long voided() {
+		return voided.sum();
+	}
+
+	public long expired() {
+		return expired.sum();
+	}
+
+	public int issue(long now) {
+		return issue(1, now);
+	}
+
+	/* Issues n consecutive serials and returns the first */
+	public int issue(int n, long now) {
+		if (n < 1 || n > limit)
+			throw new IllegalStateException("Serial window overflow");
+		/* The bucket goes in before the serials are taken, so everything taken after it counts from its start */
+		for (Bucket b; now - (b = current.get()).start >= bucketMillis; )
+			if (current.compareAndSet(b, new Bucket(next.get(), now, now + bucketMillis, b)))
+				break;
+		int first = next.getAndAdd(n);
+		if (first + n - base > limit)
+			pushOut(first + n - limit);
+		return first;
+	}
+
+	public void voidSerial(int serial, long now) throws IllegalArgumentException {
+		if (serial - base < 0 || serial - next.get() >= 0)
+			throw new IllegalArgumentException("Invalid key!");
+		if (now - bucket(serial).end > maxLifetimeMillis)
+			throw new IllegalArgumentException("Item is expired!");
+		if (!set(serial))
+			throw new IllegalArgumentException("Invalid key!");
+		voided.increment();
+	}
+
+	/* Voids serial no matter how old it is, for replaying what was voided before a restart. Returns false if it was not
+	 * outstanding. */
+	boolean clear(int serial) {
+		if (serial - base < 0 || serial - next.get() >= 0 || !set(serial))
+			return false;
+		voided.increment();
+		return true;
+	}
+
+	/* Drops all buckets whose serials have expired by now and moves past everything voided above them. Returns the
+	 * number of serials that were still outstanding in the dropped buckets. */
+	public synchronized int expire(long now) {
+		Bucket b = current.get();
+		if (now - b.end > maxLifetimeMillis) {
+			/* Nothing issued in a long time. Close the bucket so it can go, whoever issues next starts a new one. */
+			Bucket fresh = new Bucket(next.get(), now, now + bucketMillis, b);
+			if (current.compareAndSet(b, fresh))
+				b = fresh;
+			else
+				b = current.get();
+		}
+
+		/* Everything below the newest bucket whose predecessor expired */
+		int to = base;
+		for (Bucket k = b; k.prev != null; k = k.prev) {
+			if (now - k.prev.end > maxLifetimeMillis) {
+				if (k.first - to > 0)
+					to = k.first;
+				break;
+			}
+		}
+		int n = advance(to);
+
+		/* Skip words that are all voided, but never beyond next */
+		for (;;) {
+			int from = base, end = (from | 63) + 1;
+			long m = -1L << (from & 63);
+			if (next.get() - end < 0 || (words.get(index(from)) & m) != m)
+				break;
+			advance(end);
+		}
+
+		/* Buckets entirely below base won't be asked for again */
+		for (Bucket k = b; k != null; k = k.prev) {
+			if (k.first - base <= 0) {
+				k.prev = null;
+				break;
+			}
+		}
+		return n;
+	}
+
+	/* Moves base up to to, counting what was still outstanding below it as expired */
+	private synchronized int advance(int to) {
+		int from = base;
+		if (to - from <= 0)
+			return 0;
+		int n = 0;
+		for (int s = from; s - to < 0; s = (s | 63) + 1)
+			n += Long.bitCount(~bits(s) & range(Math.min(to - s, 64 - (s & 63))));
+		expired.add(n);
+		base = to;
+		for (int s = (from - lag) & ~63; to - lag - (s + 64) >= 0; s += 64)
+			words.set(index(s), 0);
+		return n;
+	}
+
+	private synchronized void pushOut(int to) {
+		if (to - base > 0)
+			advance(to);
+	}
+
+	public String toString() {
+		return "Serial window: "+outstanding()+" outstanding in "+span()+" serials, "+voided()+" voided, "+expired()+" expired";
+	}
+
+	private int index(int serial) {
+		return (serial >>> 6) & mask;
+	}
+
+	/* The voided bits of serials [from, from+64), bit 0 being from */
+	private long bits(int from) {
+		int shift = from & 63;
+		long w = words.get(index(from)) >>> shift;
+		if (shift != 0)
+			w |= words.get(index(from + 64)) << (64 - shift);
+		return w;
+	}
+
+	/* The low n bits, or all of them */
+	private static long range(int n) {
+		return n >= 64 ? -1L : (1L << n) - 1;
+	}
+
+	private boolean set(int serial) {
+		int i = index(serial);
+		long bit = 1L << serial;
+		for (;;) {
+			long w = words.get(i);
+			if ((w & bit) != 0)
+				return false;
+			if (words.compareAndSet(i, w, w | bit))
+				return true;
+		}
+	}
+
+	/* The bucket serial was issued in, which has to be inside the window */
+	private Bucket bucket(int serial) {
+		Bucket k = current.get();
+		for (Bucket p; serial - k.first < 0 && (p = k.prev) != null; )
+			k = p;
+		return k;
+	}
+
+	/* Everything in one string for config.yml, see toBytes */
+	public String encode() {
+		return Base64.getEncoder().encodeToString(toBytes());
+	}
+
+	public static SerialWindow decode(String data, long bucketMillis, long maxLifetimeMillis) throws IllegalArgumentException {
+		return fromBytes(Base64.getDecoder().decode(data), bucketMillis, maxLifetimeMillis);
+	}
+
+	/* [u8 format] [s32 base] [s32 next] [s32 bucket count] [s32 first, s64 start, s64 end]... [s64 bitmap words]...
+	 *
+	 * The bitmap has a bit set for every outstanding serial, starting at base. Taken while serials are issued and voided
+	 * this is a snapshot of some moment in between, which is what ReplayStateFile needs. */
+	public byte[] toBytes() {
+		int b = base, n = next.get();
+		List<Bucket> buckets = new ArrayList<Bucket>();
+		int after = n;
+		for (Bucket k = current.get(); k != null; k = k.prev) {
+			/* Empty ones don't need saving */
+			if (k.first - after < 0 && k.first - n < 0) {
+				buckets.add(k);
+				after = k.first;
+			}
+			if (k.first - b <= 0)
+				break;
+		}
+		int nwords = (n - b + 63) >>> 6;
+		ByteBuffer buf = ByteBuffer.allocate(1 + 3*4 + buckets.size()*(4+8+8) + nwords*8);
+		buf.put((byte)FORMAT);
+		buf.putInt(b);
+		buf.putInt(n);
+		buf.putInt(buckets.size());
+		for (int i=buckets.size()-1; i>=0; i--) {
+			Bucket k = buckets.get(i);
+			buf.putInt(k.first);
+			buf.putLong(k.start);
+			buf.putLong(k.end);
+		}
+		for (int i=0; i<nwords; i++)
+			buf.putLong(~bits(b + i*64) & range(n - b - i*64));
+		return buf.array();
+	}
+
+	public static SerialWindow fromBytes(byte data[], long bucketMillis, long maxLifetimeMillis) throws IllegalArgumentException {
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			if (buf.get() != FORMAT)
+				throw new IllegalArgumentException("Unknown serial window format");
+			int base = buf.getInt(), next = buf.getInt(), nbuckets = buf.getInt();
+			if (next - base < 0 || nbuckets < 0 || nbuckets > buf.remaining()/20)
+				throw new IllegalArgumentException("Corrupt serial window");
+			int nwords = (next - base + 63) >>> 6;
+			if (nwords > 0 && nbuckets == 0)
+				throw new IllegalArgumentException("Corrupt serial window");
+
+			int capacity = DEFAULT_CAPACITY;
+			while (capacity/2 < next - base + 64)
+				capacity *= 2;
+			SerialWindow w = new SerialWindow(base, bucketMillis, maxLifetimeMillis, capacity);
+			w.next.set(next);
+			Bucket k = null;
+			for (int i=0; i<nbuckets; i++) {
+				int first = buf.getInt();
+				long start = buf.getLong(), last = buf.getLong();
+				/* Older versions saved when the last serial went out, which the newest bucket might still take more of */
+				k = new Bucket(first, start, Math.max(last, start + bucketMillis), k);
+			}
+			if (k != null)
+				w.current.set(k);
+			for (int i=0; i<nwords; i++) {
+				int from = base + i*64, shift = from & 63;
+				long v = ~buf.getLong() & range(next - from);
+				w.words.set(w.index(from), w.words.get(w.index(from)) | v << shift);
+				if (shift != 0)
+					w.words.set(w.index(from + 64), w.words.get(w.index(from + 64)) | v >>> (64 - shift));
+			}
+			return w;
+		} catch (BufferUnderflowException ex) {
+			throw new IllegalArgumentException("Truncated serial window");
+		}
+	}
+
+	/* For the integer list older versions kept in config.yml. All of them count as issued now. */
+	public static SerialWindow of(Collection<Integer> serials, int next, long now, long bucketMillis, long maxLifetimeMillis) {
+		int min = next;
+		for (int serial : serials)
+			if (serial - min < 0)
+				min = serial;
+		for (int serial : serials)
+			if (serial - next >= 0)
+				next = serial + 1;
+		SerialWindow w = new SerialWindow(min, bucketMillis, maxLifetimeMillis);
+		if (next == min)
+			return w;
+		w.issue(next - min, now);
+		/* Easier to void what's missing than to pick out what's there */
+		boolean keep[] = new boolean[next - min];
+		for (int serial : serials)
+			keep[serial - min] = true;
+		for (int i=0; i<keep.length; i++)
+			if (!keep[i])
+				w.voidSerial(min + i, now);
+		return w;
+	}
+}
@@ -0,0 +1,187 @@
+package net.jaseg.udpcraft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class SerialWindowTest {
+	private static final long BUCKET = 100;
+	private static final long LIFETIME = 1000;
+
+	private static void assertRejected(SerialWindow w, int serial, long now) {
+		try {
+			w.voidSerial(serial, now);
+			fail("Serial "+serial+" accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void testVoid() {
+		SerialWindow w = new SerialWindow(42, BUCKET, LIFETIME);
+		assertEquals(42, w.issue(0));
+		assertEquals(43, w.issue(3, 0));
+		assertEquals(46, w.next());
+		assertEquals(4, w.outstanding());
+
+		w.voidSerial(44, 10);
+		assertRejected(w, 44, 10);
+		assertRejected(w, 41, 10);
+		assertRejected(w, 46, 10);
+		w.voidSerial(42, 10);
+		assertEquals(2, w.outstanding());
+	}
+
+	@Test
+	public void testSlide() {
+		SerialWindow w = new SerialWindow(0, BUCKET, LIFETIME);
+		for (int i=0; i<10000; i++) {
+			w.issue(i);
+			if (i >= 100)
+				w.voidSerial(i-100, i);
+			w.expire(i);
+		}
+		/* Only the last hundred or so are left, and the window has moved along with them */
+		assertEquals(100, w.outstanding());
+		assertEquals(true, w.span() < 100+128);
+		assertEquals(0, w.expired());
+	}
+
+	@Test
+	public void testExpiry() {
+		SerialWindow w = new SerialWindow(0, BUCKET, LIFETIME);
+		w.issue(0);
+		w.issue(50);
+		w.issue(500);
+		/* The bucket started at 0 ends at 100, so everything in it gets until 1100 */
+		w.voidSerial(0, 1100);
+		assertRejected(w, 1, 1101);
+		w.voidSerial(2, 1600);
+		assertRejected(w, 1, 1600);
+	}
+
+	@Test
+	public void testEncode() {
+		SerialWindow w = new SerialWindow(-70, BUCKET, LIFETIME);
+		for (int i=0; i<200; i++)
+			w.issue(i*10);
+		for (int i=-70; i<100; i+=3)
+			w.voidSerial(i, LIFETIME);
+
+		SerialWindow d = SerialWindow.decode(w.encode(), BUCKET, LIFETIME);
+		assertEquals(w.next(), d.next());
+		assertEquals(w.outstanding(), d.outstanding());
+		assertEquals(w.encode(), d.encode());
+		/* The first bucket started at 0 */
+		d.voidSerial(-69, BUCKET+LIFETIME);
+		assertRejected(d, -70, BUCKET+LIFETIME);
+		assertRejected(d, -68, BUCKET+LIFETIME+1);
+	}
+
+	@Test
+	public void testLegacy() {
+		SerialWindow w = SerialWindow.of(Arrays.asList(3, 7, 5), 6, 0, BUCKET, LIFETIME);
+		assertEquals(8, w.next());
+		assertEquals(3, w.outstanding());
+		w.voidSerial(3, 0);
+		assertRejected(w, 4, 0);
+		w.voidSerial(7, 0);
+		assertEquals(8, w.issue(0));
+	}
+
+	@Test
+	public void testExpire() {
+		SerialWindow w = new SerialWindow(0, BUCKET, LIFETIME);
+		for (int t=0; t<LIFETIME; t++) {
+			w.issue(t);
+			w.issue(t);
+			/* Every other item gets lost on the way */
+			w.voidSerial(w.next()-1, t);
+			assertEquals(0, w.expire(t));
+		}
+		assertEquals(1000, w.voided());
+
+		/* The first two buckets ran out at 99 and 199 plus LIFETIME, and the bitmap goes with them */
+		assertEquals(200, w.expire(LIFETIME+250));
+		assertEquals(800, w.outstanding());
+		assertEquals(true, w.span() <= 1600+64);
+
+		assertEquals(800, w.expire(3*LIFETIME));
+		assertEquals(0, w.outstanding());
+		assertEquals(1000, w.expired());
+		assertRejected(w, w.next()-2, 3*LIFETIME);
+		w.voidSerial(w.issue(3*LIFETIME), 3*LIFETIME);
+	}
+
+	@Test
+	public void testOverrun() {
+		SerialWindow w = new SerialWindow(0, BUCKET, LIFETIME, 1024);
+		for (int i=0; i<1000; i++)
+			w.issue(0);
+		/* Only half the ring may be outstanding, the oldest got pushed out */
+		assertEquals(512, w.outstanding());
+		assertEquals(488, w.expired());
+		assertRejected(w, 487, 0);
+		w.voidSerial(488, 0);
+		w.voidSerial(999, 0);
+	}
+
+	/* Every thread issues serials and voids some of its own and some of the others', with expire() running all along.
+	 * Each serial has to be handed out once and voided exactly once if anybody tried, nothing is old enough to expire. */
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final int THREADS = 8, ROUNDS = 100000;
+		final SerialWindow w = new SerialWindow(Integer.MAX_VALUE - 1000, 1000, 3600*1000);
+		final AtomicIntegerArray issued = new AtomicIntegerArray(THREADS*ROUNDS*2);
+		final AtomicIntegerArray voided = new AtomicIntegerArray(THREADS*ROUNDS*2);
+		final AtomicIntegerArray tried = new AtomicIntegerArray(THREADS*ROUNDS*2);
+		final int base = w.next();
+
+		Thread threads[] = new Thread[THREADS];
+		for (int t=0; t<THREADS; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i=0; i<ROUNDS; i++) {
+					int n = i%7 == 0 ? 3 : 1;
+					int first = w.issue(n, System.currentTimeMillis());
+					for (int j=0; j<n; j++)
+						issued.incrementAndGet(first + j - base);
+					/* Our own, and one a bit further back that somebody else may be after too */
+					for (int serial : new int[] {first, first - 17}) {
+						if (serial - base < 0)
+							continue;
+						tried.set(serial - base, 1);
+						try {
+							w.voidSerial(serial, System.currentTimeMillis());
+							voided.incrementAndGet(serial - base);
+						} catch (IllegalArgumentException ex) {
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		Thread purger = new Thread(() -> {
+			while (!Thread.interrupted())
+				w.expire(System.currentTimeMillis());
+		});
+		purger.start();
+		for (Thread t : threads)
+			t.join();
+		purger.interrupt();
+		purger.join();
+
+		int nissued = w.next() - base, nvoided = 0;
+		for (int i=0; i<nissued; i++) {
+			assertEquals(1, issued.get(i));
+			assertEquals(tried.get(i), voided.get(i));
+			nvoided += voided.get(i);
+		}
+		assertEquals(nvoided, w.voided());
+		assertEquals(nissued - nvoided, w.outstanding());
+		assertEquals(0, w.expired());
+	}
+}
@@ -3,7 +3,22 @@ package net.jaseg.udpcraft;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 public interface SignatureDataStore {
+	/* There is no serial to be had right now, e.g. because the coordinator can't be reached. Nothing was signed, so
+	 * whatever was about to go out stays where it is and can try again later. */
+	public static class NoSerialException extends RuntimeException {
+		private static final long serialVersionUID = 3516284469077912467L;
+
+		public NoSerialException(String msg) {
+			super(msg);
+		}
+	}
+
 	public KeyParameter getSecret();
-	public int nextSerial();
+	/* Keys for the keyed message format. Without a signing key in here everything is signed the legacy way with
+	 * getSecret(), which is accepted as well unless the ring says otherwise. null counts as KeyRing.EMPTY. */
+	public default KeyRing getKeyRing() {
+		return KeyRing.EMPTY;
+	}
+	public int nextSerial() throws NoSerialException;
 	public void voidSerial(int serial) throws IllegalArgumentException;
 }
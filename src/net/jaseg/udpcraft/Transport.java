@@ -0,0 +1,10 @@
+package net.jaseg.udpcraft;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+public interface Transport {
+	void start();
+	void stop();
+	SocketAddress getAddress() throws IOException;
+}
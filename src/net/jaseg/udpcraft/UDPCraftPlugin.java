@@ -10,29 +10,44 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import net.jaseg.udpcraft.datagram.DatagramServer;
+import net.jaseg.udpcraft.plaintext.AdmissionControl;
 import net.jaseg.udpcraft.plaintext.Server;
+import net.jaseg.udpcraft.plaintext.ThreadedServer;
 
 
 public class UDPCraftPlugin extends JavaPlugin implements PortalIndex, SignatureDataStore {
 	private HashMap<String, Portal> portals = new HashMap<String, Portal>();
 	private KeyParameter secret;
+	private volatile KeyRing keyRing = KeyRing.EMPTY;
 	private int maxLifetimeMillis;
-	private int currentSerial;
-	private Map<Integer, Long> activeSerials = new HashMap<Integer, Long>();
+	/* Expiry is tracked to within maxLifetime/SERIAL_BUCKETS */
+	private static final int SERIAL_BUCKETS = 16;
+	private SerialWindow serials;
+	private ReplayStateFile replay;
+	/* Instead of the two above when serials are shared with other servers */
+	private LeasedSignatureDataStore leased;
 	private ConnectionMux mux = new ConnectionMux(getLogger(), this, this);
-	private Server server;
+	private List<Transport> transports = new ArrayList<Transport>();
+	private WorkerPool workers;
 	private TimerTask tokenPurgeTask;
+	private Timer purgeTimer;
+	private final AtomicBoolean checkpointQueued = new AtomicBoolean();
 	
 	@Override
 	public void onEnable() {
@@ -40,10 +55,38 @@ public class UDPCraftPlugin extends JavaPlugin implements PortalIndex, Signature
 		getConfig().options().copyDefaults(true);
 		saveConfig();
 		try {
-			server = new Server(getLogger(),
-					new InetSocketAddress(getConfig().getString("server.host"), getConfig().getInt("server.port")),
-					getServer().getName(),
-					mux);
+			InetSocketAddress addr = new InetSocketAddress(getConfig().getString("server.host"), getConfig().getInt("server.port"));
+			String mode = getConfig().getString("server.mode", "selector");
+			boolean datagrams = getConfig().getBoolean("datagram.enabled", false);
+			if (mode.equals("selector") || datagrams) {
+				int nworkers = getConfig().getInt("server.workers", 0);
+				workers = nworkers > 0 ? new WorkerPool(nworkers, WorkerPool.DEFAULT_QUEUE_SIZE) : new WorkerPool();
+				mux.setWorkers(workers);
+			}
+			if (mode.equals("selector")) {
+				transports.add(new Server(getLogger(), addr, getServer().getName(), mux,
+						getConfig().getInt("server.reactors", 1),
+						getConfig().getBoolean("server.reusePort", false),
+						new AdmissionControl(
+							getConfig().getInt("server.maxConnections", 0),
+							getConfig().getInt("server.maxConnectionsPerAddress", 0),
+							getConfig().getInt("server.handshakeTimeoutSeconds", 0)*1000L,
+							getConfig().getInt("server.idleTimeoutSeconds", 0)*1000L),
+						workers));
+			} else if (mode.equals("threads")) {
+				transports.add(new ThreadedServer(getLogger(), addr, getServer().getName(), mux));
+			} else {
+				getLogger().log(Level.SEVERE, "Unknown server mode \""+mode+"\"");
+				return;
+			}
+
+			if (datagrams) {
+				transports.add(new DatagramServer(getLogger(),
+						new InetSocketAddress(getConfig().getString("datagram.host"), getConfig().getInt("datagram.port")),
+						mux,
+						getConfig().getInt("datagram.subscriptionTimeoutSeconds", 60)*1000L,
+						workers));
+			}
 		} catch(IOException ex) {
 			getLogger().log(Level.SEVERE, "Error creating listening socket", ex);
 			return;
@@ -75,26 +118,71 @@ public class UDPCraftPlugin extends JavaPlugin implements PortalIndex, Signature
 			saveConfig();
 		}
 		secret = new KeyParameter(getConfig().getString("secret").getBytes());
-		
-		if (getConfig().isSet("activeTokens")) {
-			long now = System.currentTimeMillis();
-			for (Integer token : getConfig().getIntegerList("activeTokens"))
-				activeSerials.put(token, now);
-		}
+		loadKeys();
 		
 		maxLifetimeMillis = getConfig().getInt("maxLifetimeSeconds")*1000;
-		currentSerial = getConfig().getInt("currentSerial", 0);
+		long bucketMillis = Math.max(1, maxLifetimeMillis/SERIAL_BUCKETS);
+		String coordinator = getConfig().getString("network.coordinator", "");
+		if (!coordinator.isEmpty()) {
+			try {
+				leased = new LeasedSignatureDataStore(getLogger(), secret,
+						new FileSerialCoordinator(new File(coordinator), FileSerialCoordinator.DEFAULT_BLOCK_SIZE, maxLifetimeMillis),
+						getConfig().getInt("network.leaseSize", 4096), bucketMillis);
+			} catch (IOException ex) {
+				getLogger().log(Level.SEVERE, "Error opening serial coordinator", ex);
+				return;
+			}
+		} else {
+			try {
+				replay = new ReplayStateFile(getLogger(), new File(getDataFolder(), "replay.dat"), bucketMillis, maxLifetimeMillis,
+						() -> importSerials(bucketMillis));
+			} catch (IOException ex) {
+				getLogger().log(Level.SEVERE, "Error opening replay state", ex);
+				return;
+			}
+			serials = replay.window();
+			/* Everything lives in replay.dat from now on */
+			getConfig().set("serialWindow", null);
+			getConfig().set("currentSerial", null);
+			getConfig().set("activeTokens", null);
+			saveConfig();
+		}
+		ItemStackCodec.setEnabled(getConfig().getBoolean("binaryItems", true));
+		ItemStackCodec.setCacheSize(getConfig().getInt("itemCacheSize", ItemStackCodec.DEFAULT_CACHE_SIZE));
 		getServer().getPluginManager().registerEvents(new ChestListener(getLogger(), this), this);
 		
-		server.start();
+		/* Before the transports, voids queue checkpoints on it */
+		purgeTimer = new Timer("UDPCraft Token Purger", true);
+		for (Transport t : transports)
+			t.start();
 		
+		/* One tick per bucket, which usually drops the one bucket that just ran out */
 		tokenPurgeTask = new TimerTask() {
+			private long lastVoided;
+			
 			public void run() {
-				
+				if (leased != null) {
+					int dropped = leased.expire(System.currentTimeMillis());
+					if (dropped > 0)
+						getLogger().log(Level.INFO, "Dropped "+dropped+" expired serial blocks");
+					return;
+				}
+				int expired = serials.expire(System.currentTimeMillis());
+				long voided = serials.voided() - lastVoided;
+				lastVoided += voided;
+				if (expired > 0)
+					getLogger().log(Level.INFO, "Purged "+expired+" expired serials, "+voided+" voided since last purge");
 			}
 		};
-		Timer timer = new Timer("UDPCraft Token Purger");
-		timer.schedule(tokenPurgeTask, maxLifetimeMillis, maxLifetimeMillis);
+		purgeTimer.schedule(tokenPurgeTask, bucketMillis, bucketMillis);
+		if (replay != null) {
+			long checkpointMillis = getConfig().getInt("replayCheckpointSeconds", 60)*1000L;
+			purgeTimer.schedule(new TimerTask() {
+				public void run() {
+					checkpoint();
+				}
+			}, checkpointMillis, checkpointMillis);
+		}
 		
 		getLogger().log(Level.INFO, "UDPCraft loaded successfully");
 	}
@@ -102,13 +190,67 @@ public class UDPCraftPlugin extends JavaPlugin implements PortalIndex, Signature
 	@Override
 	public void onDisable() {
 		getLogger().log(Level.INFO, "Disabling UDPCraft");
-		if (server != null)
-			server.stop();
-		tokenPurgeTask.cancel();
-		getConfig().set("activeTokens", new ArrayList<Integer>(activeSerials.keySet()));
+		/* The datagram server and the workers wait for items still out there to come back and get their serials voided,
+		 * so that is over before the serial state is closed below */
+		for (Transport t : transports)
+			t.stop();
+		if (workers != null)
+			workers.shutdown();
+		if (purgeTimer != null)
+			purgeTimer.cancel();
+		if (serials != null)
+			getLogger().log(Level.INFO, serials.toString());
+		getLogger().log(Level.INFO, ItemStackCodec.encodeCache().toString());
+		getLogger().log(Level.INFO, ItemStackCodec.decodeCache().toString());
+		try {
+			if (leased != null)
+				leased.close();
+			else if (replay != null)
+				replay.close();
+		} catch (IOException ex) {
+			getLogger().log(Level.SEVERE, "Error saving replay state", ex);
+		}
 		saveConfig();
 	}
 	
+	/* What older versions kept in config.yml, for the first start with replay.dat */
+	private SerialWindow importSerials(long bucketMillis) {
+		try {
+			if (getConfig().isSet("serialWindow"))
+				return SerialWindow.decode(getConfig().getString("serialWindow"), bucketMillis, maxLifetimeMillis);
+			List<Integer> tokens = getConfig().isSet("activeTokens") ? getConfig().getIntegerList("activeTokens") : new ArrayList<Integer>();
+			return SerialWindow.of(tokens, getConfig().getInt("currentSerial", 0), System.currentTimeMillis(),
+					bucketMillis, maxLifetimeMillis);
+		} catch (IllegalArgumentException ex) {
+			/* Starting over at currentSerial rejects everything that is still out there, but never takes a replay */
+			getLogger().log(Level.SEVERE, "Error loading serial window, outstanding items are lost: "+ex.getMessage());
+			return new SerialWindow(getConfig().getInt("currentSerial", 0), bucketMillis, maxLifetimeMillis);
+		}
+	}
+	
+	private void checkpoint() {
+		try {
+			replay.checkpoint();
+		} catch (IOException ex) {
+			getLogger().log(Level.SEVERE, "Error writing replay checkpoint", ex);
+		}
+	}
+	
+	private void queueCheckpoint() {
+		if (!checkpointQueued.compareAndSet(false, true))
+			return;
+		try {
+			purgeTimer.schedule(new TimerTask() {
+				public void run() {
+					checkpointQueued.set(false);
+					checkpoint();
+				}
+			}, 0);
+		} catch (IllegalStateException ex) {
+			/* Timer is cancelled, we are going down and close() checkpoints anyway */
+		}
+	}
+	
 	public void jarLoadingHack() {
         try {
             final File[] libs = new File[] {
@@ -155,24 +297,70 @@ public class UDPCraftPlugin extends JavaPlugin implements PortalIndex, Signature
 		return secret;
 	}
 	
-	public synchronized int nextSerial() {
-		int serial = currentSerial;
-		activeSerials.put(serial, System.currentTimeMillis());
-		currentSerial++;
-		getLogger().log(Level.INFO, "Issuing serial", serial);
+	public KeyRing getKeyRing() {
+		return keyRing;
+	}
+	
+	/* Keeps whatever keys we had if the new ones don't make sense */
+	private boolean loadKeys() {
+		try {
+			List<KeyRing.Key> keys = new ArrayList<KeyRing.Key>();
+			ConfigurationSection section = getConfig().getConfigurationSection("keys");
+			if (section != null) {
+				for (String id : section.getKeys(false)) {
+					String keySecret = section.getString(id+".secret");
+					if (keySecret == null)
+						throw new IllegalArgumentException("No secret for key "+id);
+					keys.add(new KeyRing.Key(Integer.parseInt(id), MacAlgorithm.forName(section.getString(id+".algorithm", "HMAC-SHA256")),
+							keySecret.getBytes()));
+				}
+			}
+			keyRing = new KeyRing(keys, getConfig().getInt("signingKey", -1), getConfig().getBoolean("acceptLegacy", true));
+			getLogger().log(Level.INFO, "Loaded "+keys.size()+" MAC keys, signing with "
+					+(keyRing.signingKey() == null ? "the legacy secret" : keyRing.signingKey())
+					+(keyRing.acceptsLegacy() ? "" : ", legacy secret no longer accepted"));
+			return true;
+		} catch (IllegalArgumentException ex) {
+			getLogger().log(Level.SEVERE, "Error loading MAC keys: "+ex.getMessage());
+			return false;
+		}
+	}
+	
+	@Override
+	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+		if (command.getName().equals("udpreloadkeys")) {
+			reloadConfig();
+			sender.sendMessage(loadKeys() ? "MAC keys reloaded" : "Error loading MAC keys, see server log");
+			return true;
+		}
+		return false;
+	}
+	
+	/* No locking in here, SerialWindow and ReplayStateFile take care of themselves */
+	public int nextSerial() {
+		if (leased != null)
+			return leased.nextSerial();
+		int serial = serials.issue(System.currentTimeMillis());
+		replay.issued(serial + 1);
+		getLogger().log(Level.FINE, "Issuing serial {0}", serial);
 		return serial;
 	}
 	
-	public synchronized void voidSerial(int serial) {
-		if (!activeSerials.containsKey(serial))
-			throw new IllegalArgumentException("Invalid key!");
-
-		if (System.currentTimeMillis() - activeSerials.get(serial) > maxLifetimeMillis) {
-			getLogger().log(Level.INFO, "Expired item with time "+activeSerials.get(serial)+", current time "+System.currentTimeMillis()+", max lifetime "+maxLifetimeMillis);
-			throw new IllegalArgumentException("Item is expired!");
+	public void voidSerial(int serial) {
+		if (leased != null) {
+			leased.voidSerial(serial);
+			getLogger().log(Level.FINE, "Voiding serial {0}", serial);
+			return;
+		}
+		serials.voidSerial(serial, System.currentTimeMillis());
+		if (!replay.voided(serial)) {
+			/* Both journal halves full, the queued checkpoint hasn't caught up yet. The void still counts, it just isn't
+			 * on disk until a checkpoint, so wait for one. */
+			checkpoint();
+		} else if (replay.checkpointDue()) {
+			queueCheckpoint();
 		}
-		activeSerials.remove(serial);
-		getLogger().log(Level.INFO, "Voiding serial", serial);
+		getLogger().log(Level.FINE, "Voiding serial {0}", serial);
 	}
 	
 	/* Portal index */
@@ -0,0 +1,94 @@
+package net.jaseg.udpcraft;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/* Threads for the CPU heavy part of receiving items, checking MACs and decoding stacks, so the reactor threads can stick
+ * to I/O. The queue is bounded. Once it is full, or after shutdown, whoever submits a task runs it right away, which is
+ * the backpressure we want: a reactor that is busy verifying is not reading more. */
+public class WorkerPool implements Executor {
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private final ThreadPoolExecutor pool;
+
+	public WorkerPool(int threads, int queueSize) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one worker, got "+threads);
+		AtomicInteger n = new AtomicInteger();
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				r -> {
+					Thread t = new Thread(r, "UDPCraft Worker "+n.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				},
+				(r, executor) -> r.run());
+	}
+
+	/* One per core */
+	public WorkerPool() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE);
+	}
+
+	public int size() {
+		return pool.getMaximumPoolSize();
+	}
+
+	public void execute(Runnable task) {
+		pool.execute(task);
+	}
+
+	/* Runs body for 0 to n-1 on the pool and returns once all of them are done. The calling thread works along instead
+	 * of just waiting, so this can't deadlock when called from one of our own threads with everybody else busy. body
+	 * must not throw. */
+	public void forEach(int n, IntConsumer body) {
+		AtomicInteger next = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(n);
+		Runnable worker = () -> {
+			for (int i; (i = next.getAndIncrement()) < n; ) {
+				try {
+					body.accept(i);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		for (int i=0; i<Math.min(n, size()+1)-1; i++)
+			pool.execute(worker);
+		worker.run();
+
+		/* Everything is taken by now, we only wait for the ones still running elsewhere */
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/* Waits for whatever is queued already, so none of it runs after the caller closes things behind us. Anything
+	 * submitted from now on runs right away on the submitting thread. */
+	public void shutdown() {
+		pool.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,422 @@
+package net.jaseg.udpcraft.datagram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.Arrays;
+
+import net.jaseg.udpcraft.ItemListener;
+import net.jaseg.udpcraft.ItemMessage;
+import net.jaseg.udpcraft.Portal;
+import net.jaseg.udpcraft.PubSubHandler;
+import net.jaseg.udpcraft.Transport;
+
+/* Finally living up to the name. Every datagram carries exactly one request or one signed item:
+ *
+ *   [magic 'U'] [opcode] [portal name length] [portal name] [opcode specific body]
+ *
+ *   SUBSCRIBE    body is an 8-byte cookie followed by the optional portal password (UTF-8)
+ *   UNSUBSCRIBE  no body
+ *   KEEPALIVE    no body, refreshes the subscription
+ *   SUBMIT       body is ItemMessage.serialize() output
+ *   ITEM         server to client. Body is a 4-byte transfer id followed by ItemMessage.serialize() output
+ *   ACK          client to server. Body is the 4-byte transfer id of an ITEM
+ *   REPLY        server to client. Body is the opcode replied to, a 2-byte SMTP-style status code and a UTF-8 message
+ *   COOKIE       server to client. Body is the 8-byte cookie to SUBSCRIBE with
+ *
+ * Subscriptions are keyed by source address and dropped after subscriptionTimeout without any datagram from that
+ * address. Since anybody can put any source address on a datagram, a SUBSCRIBE only counts if it carries a cookie we
+ * sent to that address within the last minute or two. Without one, the answer is a COOKIE datagram no larger than the
+ * SUBSCRIBE, so a spoofed SUBSCRIBE neither gets its victim any items nor any more traffic than it sent itself. Clients
+ * start out with eight zero bytes and SUBSCRIBE again with what they get back.
+ *
+ * ITEMs are retransmitted until ACKed. Since every item carries a serial that can only be voided once, duplicates on
+ * either path are harmless. Items that are never ACKed go back into their chest, see Portal.returnMessage. Transfer ids
+ * are random so nobody else can ACK them away.
+ *
+ * SUBMITs and returned items void a serial, which with a LeasedSignatureDataStore means going to the coordinator. Given
+ * workers, that happens on them and the reply to a SUBMIT comes from there. */
+public class DatagramServer implements Transport, Runnable {
+	public static final byte MAGIC = 'U';
+	public static final byte OP_SUBSCRIBE = 1;
+	public static final byte OP_UNSUBSCRIBE = 2;
+	public static final byte OP_KEEPALIVE = 3;
+	public static final byte OP_SUBMIT = 4;
+	public static final byte OP_ITEM = 5;
+	public static final byte OP_ACK = 6;
+	public static final byte OP_REPLY = 7;
+	public static final byte OP_COOKIE = 8;
+
+	public static final int MAX_DATAGRAM = 65507; /* IPv4 UDP payload limit */
+	private static final int RETRANSMIT_MILLIS = 500;
+	private static final int MAX_TRANSMISSIONS = 10;
+	public static final int COOKIE_LEN = 8;
+	private static final long COOKIE_MILLIS = 60000;
+
+	private DatagramChannel dch;
+	private Selector sel;
+	private volatile boolean shouldStop = false;
+	private Thread runner;
+
+	private Logger logger;
+	private PubSubHandler pubsub;
+	private Executor workers;
+	private long subscriptionTimeoutMillis;
+	private Map<SocketAddress, Subscriber> subscribers = new ConcurrentHashMap<SocketAddress, Subscriber>();
+	private Map<Integer, Transfer> unacked = new ConcurrentHashMap<Integer, Transfer>();
+	private SecureRandom random = new SecureRandom();
+	/* Only used on the server thread */
+	private HMac cookieMac = new HMac(new SHA256Digest());
+	private byte cookieBuf[] = new byte[32];
+
+	private static class Transfer {
+		SocketAddress addr;
+		ByteBuffer datagram;
+		Portal portal;
+		ItemMessage msg;
+		long lastSent;
+		int transmissions;
+	}
+
+	private class Subscriber implements ItemListener {
+		final SocketAddress addr;
+		final Set<String> portals = ConcurrentHashMap.newKeySet();
+		volatile long lastSeen = System.currentTimeMillis();
+
+		Subscriber(SocketAddress addr) {
+			this.addr = addr;
+		}
+
+		public boolean emitMessage(Portal portal, ItemMessage msg) {
+			byte name[] = portal.getName().getBytes(StandardCharsets.US_ASCII);
+			byte payload[] = msg.serialize();
+			if (3 + name.length + 4 + payload.length > MAX_DATAGRAM) {
+				logger.log(Level.WARNING, "Item from "+portal.getName()+" too large for a datagram ("+payload.length+" bytes)");
+				return false;
+			}
+
+			Transfer t = new Transfer();
+			t.addr = addr;
+			t.portal = portal;
+			t.msg = msg;
+			int id;
+			do {
+				id = random.nextInt();
+			} while (unacked.putIfAbsent(id, t) != null);
+			t.datagram = header(OP_ITEM, name, 4 + payload.length);
+			t.datagram.putInt(id);
+			t.datagram.put(payload);
+			t.datagram.flip();
+
+			if (!transmit(t)) {
+				/* Socket buffer full, leave the stack in the chest for now */
+				unacked.remove(id);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	public DatagramServer(Logger logger, InetSocketAddress addr, PubSubHandler pubsub, long subscriptionTimeoutMillis) throws IOException {
+		this(logger, addr, pubsub, subscriptionTimeoutMillis, null);
+	}
+
+	/* workers may be null, then everything runs on our own thread */
+	public DatagramServer(Logger logger, InetSocketAddress addr, PubSubHandler pubsub, long subscriptionTimeoutMillis,
+			Executor workers) throws IOException {
+		sel = Selector.open();
+		dch = DatagramChannel.open();
+		dch.configureBlocking(false);
+		dch.bind(addr);
+		dch.register(sel, SelectionKey.OP_READ);
+		byte key[] = new byte[32];
+		random.nextBytes(key);
+		cookieMac.init(new KeyParameter(key));
+
+		this.logger = logger;
+		this.pubsub = pubsub;
+		this.workers = workers;
+		this.subscriptionTimeoutMillis = subscriptionTimeoutMillis;
+		runner = new Thread(this, "UDPCraft Datagram Server");
+	}
+
+	public void start() {
+		runner.start();
+	}
+
+	/* Returns once the server thread is gone. Items still waiting for an ACK go back to their chests from the calling
+	 * thread, so they are back before it goes on to close whatever keeps track of serials. */
+	public void stop() {
+		shouldStop = true;
+		sel.wakeup();
+		boolean interrupted = false;
+		while (runner.isAlive()) {
+			try {
+				runner.join();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		/* Nothing new gets emitted to us after this */
+		for (Subscriber sub : subscribers.values())
+			pubsub.unsubscribeAll(sub);
+		subscribers.clear();
+		for (Transfer t : unacked.values())
+			t.portal.returnMessage(t.msg);
+		unacked.clear();
+	}
+
+	public SocketAddress getAddress() throws IOException {
+		return dch.getLocalAddress();
+	}
+
+	private static ByteBuffer header(byte opcode, byte name[], int bodyLen) {
+		ByteBuffer buf = ByteBuffer.allocate(3 + name.length + bodyLen);
+		buf.put(MAGIC);
+		buf.put(opcode);
+		buf.put((byte)name.length);
+		buf.put(name);
+		return buf;
+	}
+
+	private boolean transmit(Transfer t) {
+		synchronized (t) {
+			try {
+				if (dch.send(t.datagram.duplicate(), t.addr) == 0)
+					return false;
+			} catch (IOException ex) {
+				logger.log(Level.INFO, "Error sending datagram: "+ex.toString());
+				return false;
+			}
+			t.lastSent = System.currentTimeMillis();
+			t.transmissions++;
+			return true;
+		}
+	}
+
+	/* Keyed hash of the address and the current minute, so cookies need no state on our side and go stale by themselves */
+	private byte[] cookie(SocketAddress addr, long slot) {
+		InetSocketAddress isa = (InetSocketAddress)addr;
+		byte ip[] = isa.getAddress().getAddress();
+		for (int i=56; i>=0; i-=8)
+			cookieMac.update((byte)(slot>>i));
+		cookieMac.update(ip, 0, ip.length);
+		cookieMac.update((byte)(isa.getPort()>>8));
+		cookieMac.update((byte)isa.getPort());
+		cookieMac.doFinal(cookieBuf, 0);
+		return java.util.Arrays.copyOf(cookieBuf, COOKIE_LEN);
+	}
+
+	/* Takes the cookie off the front of buf. This minute's or last minute's will do. */
+	private boolean checkCookie(SocketAddress addr, ByteBuffer buf) {
+		if (buf.remaining() < COOKIE_LEN)
+			return false;
+		byte got[] = new byte[COOKIE_LEN];
+		buf.get(got);
+		long slot = System.currentTimeMillis() / COOKIE_MILLIS;
+		return Arrays.constantTimeAreEqual(got, cookie(addr, slot)) || Arrays.constantTimeAreEqual(got, cookie(addr, slot-1));
+	}
+
+	private void reply(SocketAddress addr, byte opcode, byte name[], int code, String msg) {
+		byte mbytes[] = msg.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = header(OP_REPLY, name, 3 + mbytes.length);
+		buf.put(opcode);
+		buf.putShort((short)code);
+		buf.put(mbytes);
+		buf.flip();
+		try {
+			dch.send(buf, addr);
+		} catch (IOException ex) {
+			logger.log(Level.INFO, "Error sending datagram: "+ex.toString());
+		}
+	}
+
+	private void returnMessage(Transfer t) {
+		if (workers == null)
+			t.portal.returnMessage(t.msg);
+		else
+			workers.execute(() -> t.portal.returnMessage(t.msg));
+	}
+
+	private void submit(SocketAddress addr, byte nbytes[], String name, ByteBuffer body) {
+		try {
+			pubsub.submit(name, body);
+		} catch (IllegalArgumentException ex) {
+			reply(addr, OP_SUBMIT, nbytes, 550, "Invalid arguments: "+ex.toString());
+			return;
+		} catch (RuntimeException ex) {
+			logger.log(Level.SEVERE, "Error handling datagram from "+addr, ex);
+			reply(addr, OP_SUBMIT, nbytes, 550, "Internal error");
+			return;
+		}
+		reply(addr, OP_SUBMIT, nbytes, 250, "OK");
+	}
+
+	private void handleDatagram(ByteBuffer buf, SocketAddress addr) {
+		byte opcode, nbytes[];
+		try {
+			if (buf.get() != MAGIC)
+				return; /* Not for us */
+			opcode = buf.get();
+			nbytes = new byte[buf.get() & 0xff];
+			buf.get(nbytes);
+		} catch (BufferUnderflowException ex) {
+			return;
+		}
+		String name = new String(nbytes, StandardCharsets.US_ASCII);
+
+		Subscriber sub = subscribers.get(addr);
+		if (sub != null)
+			sub.lastSeen = System.currentTimeMillis();
+
+		try {
+			switch (opcode) {
+			case OP_SUBSCRIBE:
+				int len = buf.remaining();
+				if (!checkCookie(addr, buf)) {
+					/* Never answer with more than we got */
+					if (len >= COOKIE_LEN) {
+						ByteBuffer out = header(OP_COOKIE, nbytes, COOKIE_LEN);
+						out.put(cookie(addr, System.currentTimeMillis() / COOKIE_MILLIS));
+						out.flip();
+						dch.send(out, addr);
+					}
+					return;
+				}
+				if (sub == null) {
+					sub = new Subscriber(addr);
+					subscribers.put(addr, sub);
+				}
+				/* A retransmitted SUBSCRIBE whose reply got lost */
+				if (!sub.portals.contains(name)) {
+					byte pw[] = new byte[buf.remaining()];
+					buf.get(pw);
+					pubsub.subscribe(name, pw.length == 0 ? null : new String(pw, StandardCharsets.UTF_8), sub);
+					sub.portals.add(name);
+				}
+				break;
+			case OP_UNSUBSCRIBE:
+				if (sub == null || !sub.portals.remove(name))
+					throw new IllegalArgumentException("Portal was not subscribed");
+				pubsub.unsubscribe(name, sub);
+				break;
+			case OP_KEEPALIVE:
+				if (sub == null || !sub.portals.contains(name))
+					throw new IllegalArgumentException("Portal was not subscribed");
+				break;
+			case OP_SUBMIT:
+				if (workers == null) {
+					submit(addr, nbytes, name, buf);
+				} else {
+					/* buf gets reused for the next datagram */
+					byte body[] = new byte[buf.remaining()];
+					buf.get(body);
+					workers.execute(() -> submit(addr, nbytes, name, ByteBuffer.wrap(body)));
+				}
+				return;
+			case OP_ACK:
+				if (buf.remaining() >= 4) {
+					int id = buf.getInt();
+					Transfer t = unacked.get(id);
+					if (t != null && t.addr.equals(addr))
+						unacked.remove(id);
+				}
+				return; /* ACKs are not acknowledged */
+			default:
+				reply(addr, opcode, nbytes, 550, "Command not supported");
+				return;
+			}
+		} catch (IllegalArgumentException ex) {
+			reply(addr, opcode, nbytes, 550, "Invalid arguments: "+ex.toString());
+			return;
+		} catch (IOException ex) {
+			logger.log(Level.INFO, "Error sending datagram: "+ex.toString());
+			return;
+		} catch (RuntimeException ex) {
+			/* Whatever went wrong, it must not take the only server thread down with it */
+			logger.log(Level.SEVERE, "Error handling datagram from "+addr, ex);
+			reply(addr, opcode, nbytes, 550, "Internal error");
+			return;
+		}
+		reply(addr, opcode, nbytes, 250, "OK");
+	}
+
+	private void housekeeping() {
+		long now = System.currentTimeMillis();
+
+		Iterator<Transfer> it = unacked.values().iterator();
+		while (it.hasNext()) {
+			Transfer t = it.next();
+			if (now - t.lastSent < RETRANSMIT_MILLIS)
+				continue;
+			if (t.transmissions >= MAX_TRANSMISSIONS) {
+				logger.log(Level.WARNING, "Item to "+t.addr+" was never acknowledged, giving up");
+				it.remove();
+				returnMessage(t);
+				continue;
+			}
+			transmit(t);
+		}
+
+		Iterator<Subscriber> sit = subscribers.values().iterator();
+		while (sit.hasNext()) {
+			Subscriber sub = sit.next();
+			if (now - sub.lastSeen < subscriptionTimeoutMillis)
+				continue;
+			logger.log(Level.INFO, "Subscription of "+sub.addr+" timed out");
+			sit.remove();
+			for (String name : sub.portals) {
+				try {
+					pubsub.unsubscribe(name, sub);
+				} catch (IllegalArgumentException ex) {}
+			}
+		}
+	}
+
+	public void run() {
+		ByteBuffer fnord = ByteBuffer.allocate(MAX_DATAGRAM);
+		while (!shouldStop) {
+			try {
+				sel.select(RETRANSMIT_MILLIS);
+				sel.selectedKeys().clear();
+
+				SocketAddress addr;
+				while ((addr = dch.receive(fnord)) != null) {
+					fnord.flip();
+					handleDatagram(fnord, addr);
+					fnord.clear();
+				}
+
+				housekeeping();
+			} catch(IOException ex) {
+				logger.log(Level.INFO, "Caught exception: "+ex.toString());
+			}
+		}
+
+		/* Whatever is still in flight goes back where it came from once stop() is done waiting for us */
+		try {
+			dch.close();
+		} catch (IOException ex) {}
+	}
+}
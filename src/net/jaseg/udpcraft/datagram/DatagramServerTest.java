@@ -0,0 +1,222 @@
+package net.jaseg.udpcraft.datagram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import net.jaseg.udpcraft.ItemListener;
+import net.jaseg.udpcraft.ItemMessage;
+import net.jaseg.udpcraft.Portal;
+import net.jaseg.udpcraft.PubSubHandler;
+
+public class DatagramServerTest {
+
+	@Rule
+	public Timeout timeout = Timeout.millis(1000);
+
+	private DatagramServer server;
+	private PubSubHandler mux;
+	private DatagramChannel client;
+
+	@Before
+	public void setUp() throws IOException {
+		mux = mock(PubSubHandler.class);
+		server = new DatagramServer(Logger.getAnonymousLogger(), new InetSocketAddress("localhost", 0), mux, 60000);
+		server.start();
+		client = DatagramChannel.open();
+		client.connect(server.getAddress());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		client.close();
+		server.stop();
+	}
+
+	/* Returns the body of the response, which must have the given opcode */
+	private ByteBuffer send(byte opcode, String portal, byte body[], byte expected) throws IOException {
+		return send(client, opcode, portal, body, expected);
+	}
+
+	private static ByteBuffer send(DatagramChannel client, byte opcode, String portal, byte body[], byte expected) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(3 + portal.length() + body.length);
+		buf.put(DatagramServer.MAGIC);
+		buf.put(opcode);
+		buf.put((byte)portal.length());
+		buf.put(portal.getBytes());
+		buf.put(body);
+		buf.flip();
+		client.write(buf);
+
+		ByteBuffer reply = ByteBuffer.allocate(DatagramServer.MAX_DATAGRAM);
+		client.read(reply);
+		reply.flip();
+		assertEquals(DatagramServer.MAGIC, reply.get());
+		assertEquals(expected, reply.get());
+		int nameLen = reply.get() & 0xff;
+		reply.position(reply.position() + nameLen);
+		return reply;
+	}
+
+	private int request(byte opcode, String portal, byte body[]) throws IOException {
+		ByteBuffer reply = send(opcode, portal, body, DatagramServer.OP_REPLY);
+		assertEquals(opcode, reply.get());
+		return reply.getShort();
+	}
+
+	private byte[] cookie(String portal) throws IOException {
+		ByteBuffer reply = send(DatagramServer.OP_SUBSCRIBE, portal, new byte[DatagramServer.COOKIE_LEN], DatagramServer.OP_COOKIE);
+		byte cookie[] = new byte[DatagramServer.COOKIE_LEN];
+		reply.get(cookie);
+		return cookie;
+	}
+
+	private int subscribe(String portal, String password) throws IOException {
+		byte cookie[] = cookie(portal);
+		byte pw[] = password.getBytes();
+		byte body[] = Arrays.copyOf(cookie, cookie.length + pw.length);
+		System.arraycopy(pw, 0, body, cookie.length, pw.length);
+		return request(DatagramServer.OP_SUBSCRIBE, portal, body);
+	}
+
+	@Test
+	public void testSubscribeKeepaliveUnsubscribe() throws IOException {
+		assertEquals(250, subscribe("testportal", ""));
+		verify(mux).subscribe(eq("testportal"), (String)isNull(), any());
+
+		/* Retransmissions must not subscribe twice */
+		assertEquals(250, subscribe("testportal", ""));
+		verify(mux, times(1)).subscribe(any(), any(), any());
+
+		assertEquals(250, request(DatagramServer.OP_KEEPALIVE, "testportal", new byte[0]));
+		assertEquals(550, request(DatagramServer.OP_KEEPALIVE, "otherportal", new byte[0]));
+
+		assertEquals(250, request(DatagramServer.OP_UNSUBSCRIBE, "testportal", new byte[0]));
+		verify(mux).unsubscribe(eq("testportal"), any());
+		assertEquals(550, request(DatagramServer.OP_UNSUBSCRIBE, "testportal", new byte[0]));
+	}
+
+	@Test
+	public void testSubscribePassword() throws IOException {
+		assertEquals(250, subscribe("testportal", "secretpassword"));
+		verify(mux).subscribe(eq("testportal"), eq("secretpassword"), any());
+	}
+
+	@Test
+	public void testSubscribeCookie() throws IOException {
+		/* Made up cookies only ever get a fresh one, no bigger than the request */
+		ByteBuffer reply = send(DatagramServer.OP_SUBSCRIBE, "testportal", "12345678secretpassword".getBytes(), DatagramServer.OP_COOKIE);
+		assertEquals(3 + "testportal".length() + DatagramServer.COOKIE_LEN, reply.limit());
+		verify(mux, never()).subscribe(any(), any(), any());
+		/* Nor does the cookie of a different address */
+		byte cookie[] = cookie("testportal");
+		DatagramChannel other = DatagramChannel.open();
+		try {
+			other.connect(server.getAddress());
+			send(other, DatagramServer.OP_SUBSCRIBE, "testportal", cookie, DatagramServer.OP_COOKIE);
+		} finally {
+			other.close();
+		}
+		verify(mux, never()).subscribe(any(), any(), any());
+		assertEquals(250, subscribe("testportal", ""));
+	}
+
+	@Test
+	public void testSubmit() throws IOException {
+		/* The buffer is the server's receive buffer and gets reused right after, so look at it while we can */
+		final byte got[][] = new byte[1][];
+		Mockito.doAnswer(inv -> {
+			ByteBuffer buf = inv.getArgument(1);
+			got[0] = new byte[buf.remaining()];
+			buf.duplicate().get(got[0]);
+			return null;
+		}).when(mux).submit(eq("testportal"), any(ByteBuffer.class));
+		assertEquals(250, request(DatagramServer.OP_SUBMIT, "testportal", "fnord".getBytes()));
+		assertArrayEquals("fnord".getBytes(), got[0]);
+
+		Mockito.doThrow(new IllegalArgumentException("test")).when(mux).submit(any(), any(ByteBuffer.class));
+		assertEquals(550, request(DatagramServer.OP_SUBMIT, "testportal", "fnord".getBytes()));
+	}
+
+	@Test
+	public void testSubmitOnWorkers() throws IOException {
+		client.close();
+		server.stop();
+		ExecutorService workers = Executors.newSingleThreadExecutor();
+		try {
+			server = new DatagramServer(Logger.getAnonymousLogger(), new InetSocketAddress("localhost", 0), mux, 60000, workers);
+			server.start();
+			client = DatagramChannel.open();
+			client.connect(server.getAddress());
+
+			final String thread[] = new String[1];
+			final byte got[][] = new byte[1][];
+			Mockito.doAnswer(inv -> {
+				thread[0] = Thread.currentThread().getName();
+				ByteBuffer buf = inv.getArgument(1);
+				got[0] = new byte[buf.remaining()];
+				buf.get(got[0]);
+				return null;
+			}).when(mux).submit(eq("testportal"), any(ByteBuffer.class));
+			assertEquals(250, request(DatagramServer.OP_SUBMIT, "testportal", "fnord".getBytes()));
+			assertArrayEquals("fnord".getBytes(), got[0]);
+			assertNotEquals("UDPCraft Datagram Server", thread[0]);
+
+			Mockito.doThrow(new IllegalArgumentException("test")).when(mux).submit(any(), any(ByteBuffer.class));
+			assertEquals(550, request(DatagramServer.OP_SUBMIT, "testportal", "fnord".getBytes()));
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	@Test
+	public void testStopReturnsUnacked() throws IOException {
+		assertEquals(250, subscribe("testportal", ""));
+		ArgumentCaptor<ItemListener> sub = ArgumentCaptor.forClass(ItemListener.class);
+		verify(mux).subscribe(eq("testportal"), isNull(), sub.capture());
+
+		Portal portal = mock(Portal.class);
+		when(portal.getName()).thenReturn("testportal");
+		ItemMessage msg = mock(ItemMessage.class);
+		when(msg.serialize()).thenReturn("fnord".getBytes());
+		assertTrue(sub.getValue().emitMessage(portal, msg));
+
+		/* Never ACKed, so it has to be back by the time stop() returns */
+		server.stop();
+		verify(portal).returnMessage(msg);
+		verify(mux).unsubscribeAll(sub.getValue());
+	}
+
+	@Test
+	public void testHandlerCrash() throws IOException {
+		Mockito.doThrow(new IllegalStateException("test")).when(mux).submit(any(), any(ByteBuffer.class));
+		assertEquals(550, request(DatagramServer.OP_SUBMIT, "testportal", "fnord".getBytes()));
+		/* Still there */
+		assertEquals(550, request((byte)42, "testportal", new byte[0]));
+	}
+
+	@Test
+	public void testUnknownOpcode() throws IOException {
+		assertEquals(550, request((byte)42, "testportal", new byte[0]));
+	}
+}
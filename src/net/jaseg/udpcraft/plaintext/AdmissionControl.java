@@ -0,0 +1,60 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/* Connection limits for Server, shared by all of its reactors. A limit or timeout of 0 means there is none.
+ *
+ * maxConnections and maxPerAddress are checked when a connection is accepted. A client that has not sent a single
+ * complete command handshakeTimeoutMillis after connecting is dropped, as is one that has neither sent nor received
+ * anything for idleTimeoutMillis. */
+public class AdmissionControl {
+	public final int maxConnections;
+	public final int maxPerAddress;
+	public final long handshakeTimeoutMillis;
+	public final long idleTimeoutMillis;
+
+	private int connections = 0;
+	private Map<InetAddress, Integer> perAddress = new HashMap<InetAddress, Integer>();
+
+	public AdmissionControl(int maxConnections, int maxPerAddress, long handshakeTimeoutMillis, long idleTimeoutMillis) {
+		this.maxConnections = maxConnections;
+		this.maxPerAddress = maxPerAddress;
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/* Everything goes */
+	public static AdmissionControl unlimited() {
+		return new AdmissionControl(0, 0, 0, 0);
+	}
+
+	/* Returns null if the connection may go ahead, or why it may not. Every admitted connection has to be released
+	 * again exactly once. */
+	synchronized String admit(InetAddress addr) {
+		if (maxConnections > 0 && connections >= maxConnections)
+			return "Too many connections";
+		Integer n = perAddress.get(addr);
+		if (maxPerAddress > 0 && n != null && n >= maxPerAddress)
+			return "Too many connections from your address";
+		connections++;
+		perAddress.put(addr, n == null ? 1 : n+1);
+		return null;
+	}
+
+	synchronized void release(InetAddress addr) {
+		Integer n = perAddress.get(addr);
+		if (n == null)
+			return;
+		connections--;
+		if (n == 1)
+			perAddress.remove(addr);
+		else
+			perAddress.put(addr, n-1);
+	}
+
+	synchronized int connections() {
+		return connections;
+	}
+}
@@ -0,0 +1,282 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jaseg.udpcraft.ItemListener;
+import net.jaseg.udpcraft.ItemMessage;
+import net.jaseg.udpcraft.PayloadCompressor;
+import net.jaseg.udpcraft.Portal;
+import net.jaseg.udpcraft.PubSubHandler;
+
+/* Length-prefixed binary framing for bulk relays. A client picks this protocol by sending MAGIC as the very first byte
+ * after our greeting, see ProtocolSniffer. After that, every frame in either direction looks like
+ *
+ *   [u32 length of everything that follows] [u8 opcode] [u8 portal name length] [portal name] [body]
+ *
+ * Bodies are the raw ItemMessage.serialize() bytes for SUBMIT and ITEM, the optional password for SUBSCRIBE and a
+ * u16 status code followed by a UTF-8 message for REPLY. Status codes are the same as in the text protocol.
+ *
+ * SUBMIT_BATCH and ITEM_BATCH carry a u16 message count followed by that many u32-length-prefixed messages, all for the
+ * same portal. A SUBMIT_BATCH is answered by a single BATCH_REPLY carrying the u16 message count, the u16 number of
+ * rejected messages and their u16 indices.
+ *
+ * CREDIT carries a non-negative s32 number of further ITEMs the client is willing to take from the portal, see
+ * PubSubHandler.credit.
+ *
+ * COMPRESS with body "DEFLATE" makes all SUBMIT and ITEM messages after its reply PayloadCompressor output, an empty
+ * body turns that off again. */
+public class BinaryHandler implements ItemListener {
+	public static final byte MAGIC = (byte)0xb1;
+
+	public static final byte OP_SUBSCRIBE = 1;
+	public static final byte OP_UNSUBSCRIBE = 2;
+	public static final byte OP_SUBMIT = 3;
+	public static final byte OP_QUIT = 4;
+	public static final byte OP_SUBMIT_BATCH = 5;
+	public static final byte OP_NOOP = 6;
+	public static final byte OP_COMPRESS = 7;
+	public static final byte OP_CREDIT = 8;
+	public static final byte OP_REPLY = (byte)0x80;
+	public static final byte OP_ITEM = (byte)0x81;
+	public static final byte OP_BATCH_REPLY = (byte)0x82;
+	public static final byte OP_ITEM_BATCH = (byte)0x83;
+
+	public static final int MAX_BATCH = 0xffff;
+
+	public static final int MAX_FRAME_LEN = Server.MAX_BUFFER_LEN - 4;
+
+	static final ItemMessage.Encoding ITEM_FRAME = new ItemMessage.Encoding() {
+		public ByteBuffer encode(ItemMessage msg) {
+			return itemFrame(msg, ByteBuffer.wrap(msg.serialize()));
+		}
+	};
+
+	static final ItemMessage.Encoding ITEM_FRAME_DEFLATE = new ItemMessage.Encoding() {
+		public ByteBuffer encode(ItemMessage msg) {
+			return itemFrame(msg, msg.encode(PayloadCompressor.ENCODING));
+		}
+	};
+
+	private static ByteBuffer itemFrame(ItemMessage msg, ByteBuffer payload) {
+		ByteBuffer buf = encodeFrame(OP_ITEM, msg.portalName(), payload.remaining());
+		buf.put(payload);
+		buf.flip();
+		return buf;
+	}
+
+	private Logger logger;
+	private SMTPHandler.ConnectionHandler ch;
+	private PubSubHandler pubsub;
+	private volatile boolean deflate = false;
+	private volatile boolean busy = false;
+	private final Object emitLock = new Object(); /* see SMTPHandler */
+
+	public BinaryHandler(Logger logger, SMTPHandler.ConnectionHandler ch, PubSubHandler pubsub) {
+		this.logger = logger;
+		this.ch = ch;
+		this.pubsub = pubsub;
+	}
+
+	public static ByteBuffer encodeFrame(byte opcode, String portal, int bodyLen) {
+		byte name[] = portal.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buf = ByteBuffer.allocate(4 + 2 + name.length + bodyLen);
+		buf.putInt(2 + name.length + bodyLen);
+		buf.put(opcode);
+		buf.put((byte)name.length);
+		buf.put(name);
+		return buf;
+	}
+
+	void reply(int code, String msg) {
+		byte mbytes[] = msg.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = encodeFrame(OP_REPLY, "", 2 + mbytes.length);
+		buf.putShort((short)code);
+		buf.put(mbytes);
+		buf.flip();
+		ch.reply(buf);
+	}
+
+	public boolean emitMessage(Portal portal, ItemMessage msg) {
+		/* Returning false here leaves the stack in the portal chest until the client catches up */
+		synchronized (emitLock) {
+			return ch.offer(msg.encode(deflate ? ITEM_FRAME_DEFLATE : ITEM_FRAME));
+		}
+	}
+
+	public int emitMessages(Portal portal, List<ItemMessage> msgs) {
+		synchronized (emitLock) {
+			int n = Math.min(msgs.size(), MAX_BATCH);
+			ByteBuffer payloads[] = new ByteBuffer[n];
+			int len = 2;
+			for (int i=0; i<n; i++) {
+				payloads[i] = deflate ? msgs.get(i).encode(PayloadCompressor.ENCODING) : ByteBuffer.wrap(msgs.get(i).serialize());
+				len += 4 + payloads[i].remaining();
+			}
+
+			ByteBuffer buf = encodeFrame(OP_ITEM_BATCH, portal.getName(), len);
+			buf.putShort((short)n);
+			for (ByteBuffer payload : payloads) {
+				buf.putInt(payload.remaining());
+				buf.put(payload);
+			}
+			buf.flip();
+			return ch.offer(buf) ? n : 0;
+		}
+	}
+
+	private void batchReply(int total, List<Integer> failed) {
+		ByteBuffer buf = encodeFrame(OP_BATCH_REPLY, "", 4 + 2*failed.size());
+		buf.putShort((short)total);
+		buf.putShort((short)failed.size());
+		for (int idx : failed)
+			buf.putShort((short)idx);
+		buf.flip();
+		ch.reply(buf);
+	}
+
+	/* True while a SUBMIT is still being verified on a worker, see SMTPHandler.async */
+	public boolean busy() {
+		return busy;
+	}
+
+	private void async(Runnable cmd) {
+		busy = true;
+		ch.async(() -> {
+			try {
+				cmd.run();
+			} catch (BufferUnderflowException ex) {
+				reply(550, "Invalid arguments: truncated frame");
+			} catch (IllegalArgumentException ex) {
+				reply(550, "Invalid arguments: "+ex.toString());
+			} catch (RuntimeException ex) {
+				/* see SMTPHandler */
+				logger.log(Level.SEVERE, "Error handling frame", ex);
+				reply(550, "Internal error");
+			} finally {
+				busy = false;
+			}
+		});
+	}
+
+	public int readFrames(ByteBuffer cb) throws IOException {
+		/* Calls handleFrame for every complete frame in cb, which has to be in read mode. Leaves cb's position at the
+		 * start of the first incomplete frame, or right after the one a worker is still busy with. Returns the number of
+		 * frames handled. */
+		int n = 0;
+		while (cb.remaining() >= 4) {
+			int len = cb.getInt(cb.position());
+			if (len < 2 || len > MAX_FRAME_LEN)
+				throw new IOException("Invalid frame length "+len);
+			if (cb.remaining() < 4 + len)
+				break;
+
+			ByteBuffer f = cb.duplicate();
+			f.limit(cb.position() + 4 + len);
+			f.position(cb.position() + 4);
+			cb.position(cb.position() + 4 + len);
+			handleFrame(f);
+			n++;
+			if (busy)
+				break;
+		}
+		return n;
+	}
+
+	private void handleFrame(ByteBuffer f) {
+		synchronized (ch) {
+			try {
+				byte opcode = f.get();
+				byte nbytes[] = new byte[f.get() & 0xff];
+				f.get(nbytes);
+				String name = new String(nbytes, StandardCharsets.US_ASCII);
+
+				/* f stays valid until the worker is done with it */
+				boolean deflated = deflate;
+				if (opcode == OP_SUBMIT_BATCH) {
+					async(() -> {
+						int n = f.getShort() & 0xffff;
+						List<byte[]> msgs = new ArrayList<byte[]>(n);
+						for (int i=0; i<n; i++) {
+							int len = f.getInt();
+							if (len < 0 || len > f.remaining())
+								throw new BufferUnderflowException();
+							byte msg[] = new byte[len];
+							f.get(msg);
+							try {
+								msgs.add(deflated ? PayloadCompressor.decompress(msg) : msg);
+							} catch (IllegalArgumentException ex) {
+								msgs.add(null); /* Rejected by submitBatch */
+							}
+						}
+						batchReply(n, pubsub.submitBatch(name, msgs));
+					});
+					return;
+				}
+
+				if (opcode == OP_SUBMIT) {
+					async(() -> {
+						if (deflated) {
+							byte body[] = new byte[f.remaining()];
+							f.get(body);
+							pubsub.submit(name, PayloadCompressor.decompress(body));
+						} else {
+							/* Straight out of the read buffer */
+							pubsub.submit(name, f);
+						}
+						reply(250, "OK");
+					});
+					return;
+				}
+
+				byte body[] = new byte[f.remaining()];
+				f.get(body);
+
+				switch (opcode) {
+				case OP_SUBSCRIBE:
+					pubsub.subscribe(name, body.length == 0 ? null : new String(body, StandardCharsets.UTF_8), this);
+					break;
+				case OP_CREDIT:
+					if (body.length != 4)
+						throw new IllegalArgumentException("Invalid credit");
+					pubsub.credit(name, this, ByteBuffer.wrap(body).getInt());
+					break;
+				case OP_UNSUBSCRIBE:
+					pubsub.unsubscribe(name, this);
+					break;
+				case OP_COMPRESS:
+					String alg = new String(body, StandardCharsets.US_ASCII);
+					if (!alg.equals(PayloadCompressor.NAME) && !alg.isEmpty())
+						throw new IllegalArgumentException("Unsupported compression "+alg);
+					synchronized (emitLock) {
+						reply(250, "OK");
+						deflate = !alg.isEmpty();
+					}
+					return;
+				case OP_NOOP:
+					break;
+				case OP_QUIT:
+					reply(221, "Service closing transmission channel");
+					ch.close();
+					return;
+				default:
+					reply(550, "Command not supported");
+					return;
+				}
+			} catch (BufferUnderflowException ex) {
+				reply(550, "Invalid arguments: truncated frame");
+				return;
+			} catch (IllegalArgumentException ex) {
+				reply(550, "Invalid arguments: "+ex.toString());
+				return;
+			}
+			reply(250, "OK");
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/* Blocking counterpart to Connection for ThreadedServer. The connection's own thread reads and parses lines, and a
+ * second writer thread drains the bounded outbound queue so that ITEM pushes from the portal timer never block on a
+ * slow client. */
+class BlockingConnection implements SMTPHandler.ConnectionHandler {
+	private static final int MAX_GATHER = 64;
+
+	private final SocketChannel ch;
+
+	private final Object lock = new Object();
+	private final ArrayDeque<ByteBuffer> outq = new ArrayDeque<ByteBuffer>();
+	private int queuedBytes = 0;
+	private boolean closing = false;
+	private boolean closed = false;
+
+	BlockingConnection(SocketChannel ch) {
+		this.ch = ch;
+	}
+
+	public void reply(String r) {
+		reply(ByteBuffer.wrap(r.getBytes()));
+	}
+
+	public void reply(ByteBuffer r) {
+		synchronized (lock) {
+			if (closing || closed)
+				return;
+		}
+		/* See Connection.reply */
+		if (!enqueue(r, 2*Server.MAX_QUEUED_BYTES))
+			closeNow();
+	}
+
+	public boolean offer(String r) {
+		return offer(ByteBuffer.wrap(r.getBytes()));
+	}
+
+	public boolean offer(ByteBuffer r) {
+		return enqueue(r, Server.MAX_QUEUED_BYTES);
+	}
+
+	public void close() {
+		/* The writer thread closes the socket once it has drained whatever is still queued */
+		synchronized (lock) {
+			closing = true;
+			lock.notifyAll();
+		}
+	}
+
+	private boolean enqueue(ByteBuffer buf, int limit) {
+		synchronized (lock) {
+			if (closing || closed)
+				return false;
+			if (queuedBytes + buf.remaining() > limit)
+				return false;
+			outq.add(buf);
+			queuedBytes += buf.remaining();
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	/* Writer thread body */
+	void writeLoop() {
+		try {
+			while (true) {
+				ByteBuffer bufs[];
+				synchronized (lock) {
+					while (outq.isEmpty() && !closing && !closed)
+						lock.wait();
+					if (closed || (outq.isEmpty() && closing))
+						break;
+					bufs = new ByteBuffer[Math.min(outq.size(), MAX_GATHER)];
+					Iterator<ByteBuffer> it = outq.iterator();
+					for (int i=0; i<bufs.length; i++)
+						bufs[i] = it.next();
+				}
+
+				/* In blocking mode this only returns once everything is out */
+				long written = ch.write(bufs);
+
+				synchronized (lock) {
+					queuedBytes -= written;
+					while (!outq.isEmpty() && !outq.peek().hasRemaining())
+						outq.poll();
+				}
+			}
+		} catch (IOException ex) {
+		} catch (InterruptedException ex) {
+		} finally {
+			closeNow();
+		}
+	}
+
+	SocketChannel channel() {
+		return ch;
+	}
+
+	boolean isClosing() {
+		synchronized (lock) {
+			return closing;
+		}
+	}
+
+	boolean isClosed() {
+		synchronized (lock) {
+			return closed;
+		}
+	}
+
+	void closeNow() {
+		synchronized (lock) {
+			closed = true;
+			outq.clear();
+			queuedBytes = 0;
+			lock.notifyAll();
+		}
+		try {
+			ch.close();
+		} catch (IOException ex) {}
+	}
+}
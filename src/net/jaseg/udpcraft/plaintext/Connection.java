@@ -0,0 +1,194 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/* Per-connection state living on the selector thread. Replies are never written directly. They are appended to a
+ * bounded outbound queue and the selector thread drains that queue with a single gathering write once per loop
+ * iteration, falling back to OP_WRITE whenever the kernel won't take everything at once. */
+class Connection implements SMTPHandler.ConnectionHandler {
+	private static final int MAX_GATHER = 64;
+
+	private final Reactor reactor;
+	private final SocketChannel ch;
+	private SelectionKey key;
+	private ProtocolSniffer proto;
+
+	private final Object lock = new Object();
+	private final ArrayDeque<ByteBuffer> outq = new ArrayDeque<ByteBuffer>();
+	private int queuedBytes = 0;
+	private boolean flushPending = false;
+	private boolean closing = false;
+	private boolean closed = false;
+
+	/* Admission bookkeeping, only touched on the selector thread */
+	InetAddress peer;
+	long acceptedAt;
+	long lastActivity;
+	boolean greeted = false; /* client has sent at least one complete command */
+	TimingWheel.Timeout<Connection> timer;
+
+	Connection(Reactor reactor, SocketChannel ch) {
+		this.reactor = reactor;
+		this.ch = ch;
+	}
+
+	void attach(SelectionKey key, ProtocolSniffer proto) {
+		this.key = key;
+		this.proto = proto;
+	}
+
+	SocketChannel channel() {
+		return ch;
+	}
+
+	ProtocolSniffer protocol() {
+		return proto;
+	}
+
+	public void reply(String r) {
+		reply(ByteBuffer.wrap(r.getBytes()));
+	}
+
+	public void reply(ByteBuffer r) {
+		/* Protocol replies are tiny and bounded by what the client sends us. Only a client that keeps pipelining
+		 * commands without ever reading can overflow this, and that one we just drop. */
+		synchronized (lock) {
+			if (closing || closed)
+				return;
+		}
+		if (!enqueue(r, 2*Server.MAX_QUEUED_BYTES))
+			reactor.abort(this);
+	}
+
+	public boolean offer(String r) {
+		return offer(ByteBuffer.wrap(r.getBytes()));
+	}
+
+	public boolean offer(ByteBuffer r) {
+		return enqueue(r, Server.MAX_QUEUED_BYTES);
+	}
+
+	/* The task goes to the reactor's workers, and once it is done the reactor goes on with whatever else the client sent */
+	public void async(Runnable task) {
+		reactor.async(this, task);
+	}
+
+	public void close() {
+		boolean schedule;
+		synchronized (lock) {
+			if (closing || closed)
+				return;
+			closing = true;
+			schedule = !flushPending;
+			flushPending = true;
+		}
+		/* The actual close happens once the flush has drained whatever is still queued */
+		if (schedule)
+			reactor.scheduleFlush(this);
+	}
+
+	private boolean enqueue(ByteBuffer buf, int limit) {
+		boolean schedule;
+		synchronized (lock) {
+			if (closing || closed)
+				return false;
+			if (queuedBytes + buf.remaining() > limit)
+				return false;
+			outq.add(buf);
+			queuedBytes += buf.remaining();
+			schedule = !flushPending;
+			flushPending = true;
+		}
+		if (schedule)
+			reactor.scheduleFlush(this);
+		return true;
+	}
+
+	boolean isClosing() {
+		synchronized (lock) {
+			return closing;
+		}
+	}
+
+	/* Only ever called on the selector thread. Returns the number of bytes written. */
+	long flush() throws IOException {
+		synchronized (lock) {
+			flushPending = false;
+		}
+
+		long total = 0;
+		boolean done;
+		while (true) {
+			ByteBuffer bufs[];
+			synchronized (lock) {
+				if (closed)
+					return total;
+				bufs = new ByteBuffer[Math.min(outq.size(), MAX_GATHER)];
+				Iterator<ByteBuffer> it = outq.iterator();
+				for (int i=0; i<bufs.length; i++)
+					bufs[i] = it.next();
+			}
+
+			long written = bufs.length > 0 ? ch.write(bufs) : 0;
+			total += written;
+
+			boolean shut;
+			synchronized (lock) {
+				queuedBytes -= written;
+				while (!outq.isEmpty() && !outq.peek().hasRemaining())
+					outq.poll();
+				done = outq.isEmpty();
+				shut = done && closing;
+			}
+			if (shut) {
+				closeNow();
+				return total;
+			}
+
+			/* Go for another round only if the socket took the whole batch and there's more where that came from */
+			if (done || bufs.length < MAX_GATHER || bufs[MAX_GATHER-1].hasRemaining())
+				break;
+		}
+
+		interest(!done);
+		return total;
+	}
+
+	/* Only ever called on the selector thread. No reading while the protocol handler waits for a worker, that is our
+	 * backpressure. */
+	void interest(boolean writing) {
+		if (key.isValid())
+			key.interestOps((proto.paused() ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+	}
+
+	boolean hasQueued() {
+		synchronized (lock) {
+			return !outq.isEmpty();
+		}
+	}
+
+	void closeNow() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			outq.clear();
+			queuedBytes = 0;
+		}
+		try {
+			ch.close();
+		} catch (IOException ex) {
+		} finally {
+			if (key != null)
+				key.cancel();
+			/* Outside of our lock, this ends up in the mux which calls offer() with its own lock held */
+			reactor.closed(this);
+		}
+	}
+}
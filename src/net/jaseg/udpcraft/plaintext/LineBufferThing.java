@@ -5,12 +5,16 @@ import java.nio.*;
 
 /* From the book "Things you definitely don't want to do with java, 7th revised and expanded edition */
 public class LineBufferThing {
-	private enum State {CR, LF};
-	private State st = State.CR;
-	private StringBuilder sb = new StringBuilder();
+	private int scanned = 0; /* bytes past cb.position() already searched for a line ending */
 
 	public interface LineHandler {
-		void handleLine(String line);
+		/* line is a view into the connection's read buffer between its position and limit, without the CRLF. It is only
+		 * valid during the call, or for as long as busy() says so afterwards. */
+		void handleLine(ByteBuffer line);
+		/* True while the last line is still being worked on somewhere else. No more lines until then. */
+		default boolean busy() {
+			return false;
+		}
 	}
 
 	private LineHandler lh;
@@ -19,28 +23,37 @@ public class LineBufferThing {
 		this.lh = lh;
 	}
 
-	public void readLine(ByteBuffer cb) throws IOException {
-		/* Calls the registered handler for every line in cb */
-		cb.flip();
-		while (cb.hasRemaining()) {
-			int i = cb.get();
-			if (i < 0 || i > 127)
+	public int readLine(ByteBuffer cb) throws IOException {
+		/* Calls the registered handler for every complete line in cb, which has to be in read mode. Leaves cb's
+		 * position at the start of the first incomplete line. Returns the number of lines handled. */
+		byte a[] = cb.array();
+		int base = cb.arrayOffset();
+		int start = cb.position();
+		int end = cb.limit();
+		int i = start + scanned;
+		int n = 0;
+
+		for (; i<end; i++) {
+			byte c = a[base+i];
+			if (c < 0)
 				throw new IOException("Read the spec, bro");
-			char c = (char) i;
-
-			if (st == State.CR) {
-				if (c == '\r')
-					st = State.LF;
-				else
-					sb.append(c);
-			} else { /* state == LF */
-				st = State.CR;
-				if (c == '\n') {
-					String s = sb.toString();
-					sb = new StringBuilder();
-					lh.handleLine(s);
-				}
+			if (c != '\n' || i == start || a[base+i-1] != '\r')
+				continue;
+
+			ByteBuffer line = cb.duplicate();
+			line.limit(i-1);
+			line.position(start);
+			lh.handleLine(line);
+			start = i+1;
+			n++;
+			if (lh.busy()) {
+				i = start;
+				break;
 			}
 		}
+
+		cb.position(start);
+		scanned = i - start;
+		return n;
 	}
 }
@@ -0,0 +1,109 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import net.jaseg.udpcraft.ItemListener;
+import net.jaseg.udpcraft.PubSubHandler;
+
+/* Decides between the text and the binary protocol based on the first byte a client sends. Text commands are plain
+ * ASCII, so anything starting with BinaryHandler.MAGIC can't be one.
+ *
+ * This also owns the connection's read buffer. The transport reads straight into buffer() and then calls process(),
+ * which hands complete lines or frames to the protocol handler in place and keeps partial ones for the next round.
+ *
+ * While the handler has a SUBMIT out on a worker, the buffer is left exactly as it is, since the worker is reading from
+ * it. The transport must not read into it until paused() says otherwise. The worker ends up calling process() again
+ * through the transport to pick up where we left off. */
+public class ProtocolSniffer {
+	private Logger logger;
+	private SMTPHandler.ConnectionHandler ch;
+	private PubSubHandler pubsub;
+	private LineBufferThing text;
+	private SMTPHandler smtp;
+	private BinaryHandler binary;
+	private ItemListener listener;
+	private ByteBuffer buf = ByteBuffer.allocate(Server.MAX_LINE_LEN);
+	private boolean paused = false; /* buf is still flipped for the handler */
+
+	public ProtocolSniffer(Logger logger, SMTPHandler.ConnectionHandler ch, PubSubHandler pubsub) {
+		this.logger = logger;
+		this.ch = ch;
+		this.pubsub = pubsub;
+	}
+
+	/* Buffer to read into, with room for at least one more byte */
+	public ByteBuffer buffer() throws IOException {
+		if (!buf.hasRemaining()) {
+			if (buf.capacity() >= Server.MAX_BUFFER_LEN)
+				throw new IOException("Line or frame too long");
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(2*buf.capacity(), Server.MAX_BUFFER_LEN));
+			buf.flip();
+			bigger.put(buf);
+			buf = bigger;
+		}
+		return buf;
+	}
+
+	/* Returns the number of complete commands handled */
+	public int process() throws IOException {
+		if (busy())
+			return 0;
+		if (text == null && binary == null) {
+			if (buf.position() == 0)
+				return 0;
+			if (buf.get(0) == BinaryHandler.MAGIC) {
+				binary = new BinaryHandler(logger, ch, pubsub);
+				listener = binary;
+				/* Swallow the magic */
+				buf.flip();
+				buf.get();
+				buf.compact();
+			} else {
+				smtp = new SMTPHandler(logger, ch, pubsub);
+				text = new LineBufferThing(smtp);
+				listener = smtp;
+			}
+		}
+
+		if (!paused)
+			buf.flip();
+		int n = binary != null ? binary.readFrames(buf) : text.readLine(buf);
+		paused = busy();
+		if (paused)
+			return n;
+
+		if (!buf.hasRemaining() && buf.capacity() > Server.MAX_LINE_LEN) {
+			/* Don't keep megabytes around for idle connections after one big batch */
+			buf = ByteBuffer.allocate(Server.MAX_LINE_LEN);
+		} else {
+			buf.compact();
+		}
+		return n;
+	}
+
+	private boolean busy() {
+		return binary != null ? binary.busy() : smtp != null && smtp.busy();
+	}
+
+	/* True between a command going out to a worker and the process() call after it is done */
+	public boolean paused() {
+		return paused;
+	}
+
+	/* Sends a 421 in whichever protocol the client speaks and closes the connection once that is out */
+	public void reject(String reason) {
+		if (binary != null)
+			binary.reply(421, reason);
+		else
+			ch.reply("421 "+reason+"\r\n");
+		ch.close();
+	}
+
+	/* Called once the connection is gone so the mux does not keep pushing items into a dead socket */
+	public void close() {
+		if (listener != null)
+			pubsub.unsubscribeAll(listener);
+	}
+}
@@ -0,0 +1,318 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jaseg.udpcraft.PubSubHandler;
+
+/* One selector on one thread. A reactor either accepts connections from its own listening socket(s) or gets handed
+ * freshly accepted channels by the Server's acceptor, and from then on owns all I/O on them.
+ *
+ * Handshake and idle deadlines live in a timing wheel that is advanced once per loop iteration. Each connection has at
+ * most one timeout in there, and activity only bumps a timestamp. When the timeout fires we look at that timestamp and
+ * either drop the connection or push the timeout out to the next deadline, so busy connections cost nothing here.
+ *
+ * SUBMITs are verified on the workers, if we have any. A connection stops reading while it has one out there and
+ * continues with the rest of its buffer once the worker hands it back through resume(). Many connections keep many
+ * workers busy, while every single connection still gets its replies in order. */
+class Reactor implements Runnable {
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SLOTS = 512;
+	/* How long a timed out connection gets to take its 421 before we pull the plug */
+	private static final long LINGER_MILLIS = 2000;
+
+	private Selector sel;
+	private volatile boolean shouldStop = false;
+	private Thread runner;
+
+	private Logger logger;
+	private String name;
+	private PubSubHandler pubsub;
+	private AdmissionControl admission;
+	private Executor workers;
+	private TimingWheel<Connection> wheel = new TimingWheel<Connection>(TICK_MILLIS, WHEEL_SLOTS, now());
+	private List<Connection> expired = new ArrayList<Connection>();
+	private Queue<SocketChannel> pendingAdopt = new ConcurrentLinkedQueue<SocketChannel>();
+	private Queue<Connection> pendingFlush = new ConcurrentLinkedQueue<Connection>();
+	private Queue<Connection> pendingAbort = new ConcurrentLinkedQueue<Connection>();
+	private Queue<Connection> pendingResume = new ConcurrentLinkedQueue<Connection>();
+
+	/* workers may be null, then everything runs on our own thread like it used to */
+	Reactor(Logger logger, String name, PubSubHandler pubsub, AdmissionControl admission, Executor workers, String threadName)
+			throws IOException {
+		sel = Selector.open();
+		this.logger = logger;
+		this.name = name;
+		this.pubsub = pubsub;
+		this.admission = admission;
+		this.workers = workers;
+		runner = new Thread(this, threadName);
+	}
+
+	void listen(ServerSocketChannel sch) throws ClosedChannelException {
+		sch.register(sel, SelectionKey.OP_ACCEPT);
+	}
+
+	void start() {
+		runner.start();
+	}
+
+	void stop() {
+		shouldStop = true;
+		sel.wakeup();
+	}
+
+	/* Called from the acceptor thread */
+	void adopt(SocketChannel ch) {
+		pendingAdopt.add(ch);
+		sel.wakeup();
+	}
+
+	void scheduleFlush(Connection conn) {
+		pendingFlush.add(conn);
+		/* Replies produced on the selector thread itself are corked until the end of the current iteration */
+		if (Thread.currentThread() != runner)
+			sel.wakeup();
+	}
+
+	void abort(Connection conn) {
+		logger.log(Level.INFO, "Dropping connection not reading its replies");
+		pendingAbort.add(conn);
+		if (Thread.currentThread() != runner)
+			sel.wakeup();
+	}
+
+	void async(Connection conn, Runnable task) {
+		if (workers == null) {
+			task.run();
+			return;
+		}
+		workers.execute(() -> {
+			try {
+				task.run();
+			} finally {
+				pendingResume.add(conn);
+				sel.wakeup();
+			}
+		});
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/* Takes ownership of ch, it is closed on any error */
+	private void register(SocketChannel ch) throws IOException {
+		InetAddress peer;
+		try {
+			ch.configureBlocking(false);
+			/* Throws if the peer already reset the connection */
+			peer = ((InetSocketAddress)ch.getRemoteAddress()).getAddress();
+		} catch (IOException ex) {
+			ch.close();
+			throw ex;
+		}
+
+		String refusal = admission.admit(peer);
+		if (refusal != null) {
+			logger.log(Level.INFO, "Refusing connection from "+peer+": "+refusal);
+			try {
+				/* Fits into any socket buffer, no need to bother the selector with this one */
+				ch.write(ByteBuffer.wrap(("421 "+name+" "+refusal+"\r\n").getBytes()));
+			} finally {
+				ch.close();
+			}
+			return;
+		}
+
+		/* Register chain of line segmentation and protocol handling */
+		Connection conn = new Connection(this, ch);
+		conn.peer = peer;
+		conn.acceptedAt = conn.lastActivity = now();
+		try {
+			conn.attach(ch.register(sel, SelectionKey.OP_READ, conn), new ProtocolSniffer(logger, conn, pubsub));
+		} catch (IOException ex) {
+			admission.release(peer);
+			ch.close();
+			throw ex;
+		}
+		long deadline = nextDeadline(conn);
+		if (deadline >= 0)
+			scheduleDeadline(conn, deadline);
+
+		/* Welcome our new friend. */
+		conn.reply("220 "+name+" CrappySMTPd\r\n");
+	}
+
+	/* Called by Connection.closeNow on this thread */
+	void closed(Connection conn) {
+		if (conn.peer != null)
+			admission.release(conn.peer);
+		wheel.cancel(conn.timer);
+		if (conn.protocol() != null)
+			conn.protocol().close();
+	}
+
+	private void scheduleDeadline(Connection conn, long deadline) {
+		if (conn.timer == null)
+			conn.timer = wheel.schedule(conn, deadline);
+		else
+			wheel.reschedule(conn.timer, deadline);
+	}
+
+	/* Returns the next point in time at which conn has to be looked at again, or -1 if never */
+	private long nextDeadline(Connection conn) {
+		long next = -1;
+		if (!conn.greeted && admission.handshakeTimeoutMillis > 0)
+			next = conn.acceptedAt + admission.handshakeTimeoutMillis;
+		if (admission.idleTimeoutMillis > 0) {
+			long idle = conn.lastActivity + admission.idleTimeoutMillis;
+			next = next < 0 ? idle : Math.min(next, idle);
+		}
+		return next;
+	}
+
+	private void expire(Connection conn, long now) {
+		if (conn.isClosing()) {
+			/* Didn't even pick up its 421 */
+			conn.closeNow();
+			return;
+		}
+
+		long deadline = nextDeadline(conn);
+		if (deadline < 0)
+			return;
+		if (deadline > now) {
+			scheduleDeadline(conn, deadline);
+			return;
+		}
+
+		String reason = conn.greeted ? "Idle timeout" : "Handshake timeout";
+		logger.log(Level.INFO, "Dropping connection from "+conn.peer+": "+reason);
+		conn.protocol().reject(name+" "+reason+", closing connection");
+		scheduleDeadline(conn, now + LINGER_MILLIS);
+	}
+
+	public void run() {
+		while (!shouldStop) {
+			try {
+				/* Only wake up for the wheel if there is anything in it */
+				if (wheel.size() > 0)
+					sel.select(wheel.tickMillis());
+				else
+					sel.select();
+				long now = now();
+
+				SocketChannel newch;
+				while ((newch = pendingAdopt.poll()) != null) {
+					try {
+						register(newch);
+					} catch (IOException ex) {
+						logger.log(Level.INFO, "Dropping connection: "+ex.toString());
+					}
+				}
+
+				Iterator<SelectionKey> it=sel.selectedKeys().iterator();
+				while (it.hasNext()) {
+					final SelectionKey narf = it.next();
+					it.remove();
+					if (!narf.isValid())
+						continue;
+
+					if (narf.isAcceptable()) {
+						logger.log(Level.INFO, "Accepting connection");
+						SocketChannel ch = ((ServerSocketChannel)narf.channel()).accept();
+						if (ch != null) {
+							try {
+								register(ch);
+							} catch (IOException ex) {
+								logger.log(Level.INFO, "Dropping connection: "+ex.toString());
+							}
+						}
+						continue;
+					}
+
+					Connection conn = (Connection)narf.attachment();
+					if (narf.isWritable()) {
+						try {
+							if (conn.flush() > 0)
+								conn.lastActivity = now;
+						} catch (IOException ex) {
+							conn.closeNow();
+							continue;
+						}
+					}
+
+					if(narf.isValid() && narf.isReadable() && !conn.protocol().paused()) {
+						try {
+							/* And here was I thinking java.io was bad. */
+							int nrd = conn.channel().read(conn.protocol().buffer());
+							if (nrd == -1) {
+								logger.log(Level.INFO, "Closing this end of connection closed on other end");
+								conn.closeNow();
+							} else if (nrd > 0) {
+								conn.lastActivity = now;
+							}
+
+							/* Call connection line segmentation or binary framing */
+							if (conn.protocol().process() > 0)
+								conn.greeted = true;
+							if (conn.protocol().paused())
+								conn.interest(conn.hasQueued());
+						} catch (IOException ex) {
+							conn.closeNow();
+						}
+					}
+				}
+
+				/* Pick up where the connections came back from their workers left off. Workers may finish before the
+				 * connection even noticed it was paused, so this has to be harmless on one that isn't. */
+				Connection conn;
+				while ((conn = pendingResume.poll()) != null) {
+					if (!conn.channel().isOpen() || conn.isClosing() || !conn.protocol().paused())
+						continue;
+					try {
+						conn.protocol().process();
+						conn.interest(conn.hasQueued());
+					} catch (IOException ex) {
+						conn.closeNow();
+					}
+				}
+
+				/* Uncork everything that was replied to during this iteration */
+				while ((conn = pendingAbort.poll()) != null)
+					conn.closeNow();
+				while ((conn = pendingFlush.poll()) != null) {
+					try {
+						if (conn.flush() > 0)
+							conn.lastActivity = now;
+					} catch (IOException ex) {
+						conn.closeNow();
+					}
+				}
+
+				wheel.advance(now, expired);
+				for (Connection c : expired)
+					expire(c, now);
+				expired.clear();
+			} catch(IOException ex) {
+				logger.log(Level.INFO, "Caught exception: "+ex.toString());
+			}
+		}
+	}
+}
@@ -1,10 +1,17 @@
 package net.jaseg.udpcraft.plaintext;
 
-import com.sun.org.apache.xml.internal.security.exceptions.Base64DecodingException;
-import com.sun.org.apache.xml.internal.security.utils.Base64;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import net.jaseg.udpcraft.ItemListener;
 import net.jaseg.udpcraft.ItemMessage;
+import net.jaseg.udpcraft.PayloadCompressor;
 import net.jaseg.udpcraft.Portal;
 import net.jaseg.udpcraft.PubSubHandler;
 
@@ -12,46 +19,275 @@ public class SMTPHandler implements LineBufferThing.LineHandler, ItemListener {
 	public interface ConnectionHandler {
 		void close();
 		void reply(String r);
+		void reply(ByteBuffer r);
+		/* Like reply, but refuses instead of queueing if the client is not keeping up */
+		boolean offer(String r);
+		boolean offer(ByteBuffer r);
+		/* Runs task off the I/O thread if there is somewhere to run it. The protocol handler takes no further commands
+		 * from this connection until it's done, and the buffer the command came in stays put until then. */
+		default void async(Runnable task) {
+			task.run();
+		}
 	}
 
+	private static final byte SUBSCRIBE[] = "SUBSCRIBE".getBytes(StandardCharsets.US_ASCII);
+	private static final byte UNSUBSCRIBE[] = "UNSUBSCRIBE".getBytes(StandardCharsets.US_ASCII);
+	private static final byte SUBMIT[] = "SUBMIT".getBytes(StandardCharsets.US_ASCII);
+	private static final byte BSUBMIT[] = "BSUBMIT".getBytes(StandardCharsets.US_ASCII);
+	private static final byte BATCH[] = "BATCH".getBytes(StandardCharsets.US_ASCII);
+	private static final byte QUIT[] = "QUIT".getBytes(StandardCharsets.US_ASCII);
+	private static final byte NOOP[] = "NOOP".getBytes(StandardCharsets.US_ASCII);
+	private static final byte COMPRESS[] = "COMPRESS".getBytes(StandardCharsets.US_ASCII);
+	private static final byte CREDIT[] = "CREDIT".getBytes(StandardCharsets.US_ASCII);
+	private static final byte ITEM[] = "ITEM ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte BITEM[] = "BITEM ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte CRLF[] = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/* Just the Base64 of the signed message, shared between ITEM and BITEM */
+	static final ItemMessage.Encoding BASE64 = new ItemMessage.Encoding() {
+		public ByteBuffer encode(ItemMessage msg) {
+			return ByteBuffer.wrap(Base64.getEncoder().encode(msg.serialize()));
+		}
+	};
+	
+	static final ItemMessage.Encoding ITEM_LINE = new ItemMessage.Encoding() {
+		public ByteBuffer encode(ItemMessage msg) {
+			return itemLine(msg, msg.encode(BASE64));
+		}
+	};
+	
+	/* Same for connections that negotiated COMPRESS DEFLATE */
+	static final ItemMessage.Encoding BASE64_DEFLATE = new ItemMessage.Encoding() {
+		public ByteBuffer encode(ItemMessage msg) {
+			return Base64.getEncoder().encode(msg.encode(PayloadCompressor.ENCODING));
+		}
+	};
+	
+	static final ItemMessage.Encoding ITEM_LINE_DEFLATE = new ItemMessage.Encoding() {
+		public ByteBuffer encode(ItemMessage msg) {
+			return itemLine(msg, msg.encode(BASE64_DEFLATE));
+		}
+	};
+	
+	private static ByteBuffer itemLine(ItemMessage msg, ByteBuffer b64) {
+		byte name[] = msg.portalName().getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buf = ByteBuffer.allocate(ITEM.length + name.length + 1 + b64.remaining() + CRLF.length);
+		buf.put(ITEM).put(name).put((byte)' ').put(b64).put(CRLF);
+		buf.flip();
+		return buf;
+	}
+	
+	private Logger logger;
 	private ConnectionHandler ch;
 	private PubSubHandler pubsub;
+	private volatile boolean batchItems = false;
+	private volatile boolean deflate = false;
+	private volatile boolean busy = false;
+	/* Orders ITEMs against the reply to COMPRESS so the client knows which ones are compressed. Can't use ch for this,
+	 * the mux calls us with its lock held while handleLine holds ch when calling into the mux. */
+	private final Object emitLock = new Object();
+	private int tokStart[] = new int[4];
+	private int tokEnd[] = new int[4];
 	
-	public SMTPHandler(ConnectionHandler ch, PubSubHandler pubsub) {
+	public SMTPHandler(Logger logger, ConnectionHandler ch, PubSubHandler pubsub) {
+		this.logger = logger;
 		this.ch = ch;
 		this.pubsub = pubsub;
 	}
 	
 	public boolean emitMessage(Portal portal, ItemMessage msg) {
-		synchronized (ch) {
-			ch.reply("ITEM "+portal.getName()+" "+Base64.encode(msg.serialize())+"\r\n");
+		/* Returning false here leaves the stack in the portal chest until the client catches up */
+		synchronized (emitLock) {
+			return ch.offer(msg.encode(deflate ? ITEM_LINE_DEFLATE : ITEM_LINE));
+		}
+	}
+	
+	public int emitMessages(Portal portal, List<ItemMessage> msgs) {
+		/* Older clients would choke on BITEM, so only send it to those who asked */
+		if (!batchItems)
+			return ItemListener.super.emitMessages(portal, msgs);
+		
+		synchronized (emitLock) {
+			byte name[] = portal.getName().getBytes(StandardCharsets.US_ASCII);
+			ByteBuffer parts[] = new ByteBuffer[msgs.size()];
+			int len = BITEM.length + name.length + CRLF.length;
+			for (int i=0; i<parts.length; i++) {
+				parts[i] = msgs.get(i).encode(deflate ? BASE64_DEFLATE : BASE64);
+				len += 1 + parts[i].remaining();
+			}
+			
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			buf.put(BITEM).put(name);
+			for (ByteBuffer part : parts)
+				buf.put((byte)' ').put(part);
+			buf.put(CRLF);
+			buf.flip();
+			return ch.offer(buf) ? msgs.size() : 0;
+		}
+	}
+	
+	public static String batchReply(int total, List<Integer> failed) {
+		StringBuilder sb = new StringBuilder("250 BATCH ").append(total-failed.size()).append('/').append(total);
+		if (!failed.isEmpty()) {
+			sb.append(" FAILED ");
+			for (int i=0; i<failed.size(); i++)
+				sb.append(i == 0 ? "" : ",").append(failed.get(i));
+		}
+		return sb.append("\r\n").toString();
+	}
+	
+	/* Splits line on spaces, recording token boundaries as absolute buffer indices. Returns the number of tokens. */
+	private int tokenize(ByteBuffer line) {
+		byte a[] = line.array();
+		int base = line.arrayOffset();
+		int n = 0;
+		int i = line.position();
+		int end = line.limit();
+		while (i < end) {
+			while (i < end && (a[base+i] == ' ' || a[base+i] == '\t'))
+				i++;
+			if (i == end)
+				break;
+			if (n == tokStart.length) {
+				tokStart = Arrays.copyOf(tokStart, 2*n);
+				tokEnd = Arrays.copyOf(tokEnd, 2*n);
+			}
+			tokStart[n] = i;
+			while (i < end && a[base+i] != ' ' && a[base+i] != '\t')
+				i++;
+			tokEnd[n++] = i;
 		}
+		return n;
+	}
+	
+	private static boolean tokenIs(ByteBuffer line, int start, int end, byte verb[]) {
+		if (end - start != verb.length)
+			return false;
+		byte a[] = line.array();
+		int base = line.arrayOffset();
+		for (int i=0; i<verb.length; i++)
+			if (a[base+start+i] != verb[i])
+				return false;
 		return true;
 	}
 	
-	public void handleLine(String line) {
+	private String arg(ByteBuffer line, int i) {
+		return new String(line.array(), line.arrayOffset()+tokStart[i], tokEnd[i]-tokStart[i], StandardCharsets.US_ASCII);
+	}
+	
+	private ByteBuffer token(ByteBuffer line, int i) {
+		ByteBuffer tok = line.duplicate();
+		tok.limit(tokEnd[i]);
+		tok.position(tokStart[i]);
+		return tok;
+	}
+	
+	private static byte[] decode(ByteBuffer tok, boolean deflate) throws IllegalArgumentException {
+		ByteBuffer out;
+		try {
+			out = Base64.getDecoder().decode(tok);
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("Invalid Base64-encoded message");
+		}
+		byte msg[] = out.array();
+		if (out.arrayOffset() != 0 || out.remaining() != msg.length)
+			msg = Arrays.copyOfRange(msg, out.arrayOffset()+out.position(), out.arrayOffset()+out.limit());
+		return deflate ? PayloadCompressor.decompress(msg) : msg;
+	}
+	
+	public boolean busy() {
+		return busy;
+	}
+	
+	/* SUBMIT and BSUBMIT spend their time decoding and checking MACs, which is better done on a worker. cmd replies
+	 * itself. busy only drops once that reply is queued, so replies go out in command order. */
+	private void async(Runnable cmd) {
+		busy = true;
+		ch.async(() -> {
+			try {
+				cmd.run();
+			} catch (IllegalArgumentException ex) {
+				ch.reply("550 Invalid arguments: "+ex.toString()+"\r\n");
+			} catch (RuntimeException ex) {
+				/* Whatever went wrong, the client still gets its reply and the other connections carry on */
+				logger.log(Level.SEVERE, "Error handling command", ex);
+				ch.reply("550 Internal error\r\n");
+			} finally {
+				busy = false;
+			}
+		});
+	}
+	
+	public void handleLine(ByteBuffer line) {
 		synchronized (ch) {
 			try {
-				String [] args = line.trim().split(" ");
-				if (args[0].equals("SUBSCRIBE")) {
-					if (args.length == 2)
-						pubsub.subscribe(args[1], null, this);
-					else if (args.length == 3)
-						pubsub.subscribe(args[1], args[2], this);
+				int nargs = tokenize(line);
+				int vs = nargs > 0 ? tokStart[0] : 0, ve = nargs > 0 ? tokEnd[0] : 0;
+				if (tokenIs(line, vs, ve, SUBSCRIBE)) {
+					if (nargs == 2)
+						pubsub.subscribe(arg(line, 1), null, this);
+					else if (nargs == 3)
+						pubsub.subscribe(arg(line, 1), arg(line, 2), this);
 					else throw new IllegalArgumentException("Invalid number of arguments");
-				} else if (args[0].equals("UNSUBSCRIBE")) {
-					if (args.length != 2)
+				} else if (tokenIs(line, vs, ve, UNSUBSCRIBE)) {
+					if (nargs != 2)
+						throw new IllegalArgumentException("Invalid number of arguments");
+					pubsub.unsubscribe(arg(line, 1), this);
+				} else if (tokenIs(line, vs, ve, CREDIT)) {
+					if (nargs != 3)
 						throw new IllegalArgumentException("Invalid number of arguments");
-					pubsub.unsubscribe(args[1], this);
-				} else if (args[0].equals("SUBMIT")) {
-					if (args.length != 3)
-						throw new IllegalArgumentException("Invalid number of arguments "+args.length);
-					try {
-						pubsub.submit(args[1], Base64.decode(args[2]));
-					} catch (Base64DecodingException ex) {
-						throw new IllegalArgumentException("Invalid Base64-encoded message");
+					pubsub.credit(arg(line, 1), this, Integer.parseInt(arg(line, 2))); /* NumberFormatException is an IAE */
+				} else if (tokenIs(line, vs, ve, SUBMIT)) {
+					if (nargs != 3)
+						throw new IllegalArgumentException("Invalid number of arguments "+nargs);
+					String portal = arg(line, 1);
+					ByteBuffer tok = token(line, 2);
+					boolean deflated = deflate;
+					async(() -> {
+						pubsub.submit(portal, decode(tok, deflated));
+						ch.reply("250 OK\r\n");
+					});
+					return;
+				} else if (tokenIs(line, vs, ve, BSUBMIT)) {
+					if (nargs < 3)
+						throw new IllegalArgumentException("Invalid number of arguments "+nargs);
+					String portal = arg(line, 1);
+					ByteBuffer toks[] = new ByteBuffer[nargs-2];
+					for (int i=2; i<nargs; i++)
+						toks[i-2] = token(line, i);
+					boolean deflated = deflate;
+					async(() -> {
+						List<byte[]> msgs = new ArrayList<byte[]>(toks.length);
+						for (ByteBuffer tok : toks) {
+							try {
+								msgs.add(decode(tok, deflated));
+							} catch (IllegalArgumentException ex) {
+								msgs.add(null); /* Rejected by submitBatch */
+							}
+						}
+						ch.reply(batchReply(msgs.size(), pubsub.submitBatch(portal, msgs)));
+					});
+					return;
+				} else if (tokenIs(line, vs, ve, BATCH)) {
+					if (nargs != 1)
+						throw new IllegalArgumentException("Invalid number of arguments");
+					batchItems = true;
+				} else if (tokenIs(line, vs, ve, COMPRESS)) {
+					/* Applies to ITEM, BITEM, SUBMIT and BSUBMIT payloads from the reply to this on */
+					if (nargs != 2)
+						throw new IllegalArgumentException("Invalid number of arguments");
+					String alg = arg(line, 1);
+					if (!alg.equals(PayloadCompressor.NAME) && !alg.equals("NONE"))
+						throw new IllegalArgumentException("Unsupported compression "+alg);
+					synchronized (emitLock) {
+						ch.reply("250 OK\r\n");
+						deflate = alg.equals(PayloadCompressor.NAME);
 					}
-				} else if (args[0].equals("QUIT")) {
+					return;
+				} else if (tokenIs(line, vs, ve, NOOP)) {
+					/* Keeps quiet subscribers from hitting the server's idle timeout */
+				} else if (tokenIs(line, vs, ve, QUIT)) {
+					ch.reply("221 Service closing transmission channel\r\n");
 					ch.close();
 					return;
 				} else {
@@ -3,128 +3,138 @@ package net.jaseg.udpcraft.plaintext;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.net.SocketOption;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.jaseg.udpcraft.PubSubHandler;
+import net.jaseg.udpcraft.Transport;
 
-public class Server implements Runnable {
+public class Server implements Transport, Runnable {
 
 	public static final int MAX_LINE_LEN = 512; /* see spec */
+	public static final int MAX_BUFFER_LEN = 1024*1024; /* per connection, for batches */
+	public static final int MAX_QUEUED_BYTES = 256*1024; /* per connection */
 
-	private ServerSocketChannel sch;
-	private Selector sel;
-	private boolean shouldStop = false;
-	private Thread runner;
+	private ServerSocketChannel schs[];
+	private Reactor reactors[];
+	private volatile boolean shouldStop = false;
+	private Thread acceptor;
 
 	private Logger logger;
-	private String name;
-	private PubSubHandler pubsub;
-	
 
 	public Server(Logger logger, InetSocketAddress addr, String name, PubSubHandler pubsub) throws IOException {
-		sel = Selector.open();
-		sch = ServerSocketChannel.open();
+		this(logger, addr, name, pubsub, 1, false);
+	}
+
+	/* With a single reactor, that reactor accepts connections itself just like in the good old days. With more than
+	 * one, either a dedicated acceptor thread hands accepted channels round-robin to the reactors, or, if reusePort
+	 * is set and the platform supports it, every reactor gets its own SO_REUSEPORT listening socket on the same
+	 * address and the kernel does the load balancing for us. */
+	public Server(Logger logger, InetSocketAddress addr, String name, PubSubHandler pubsub, int nreactors, boolean reusePort) throws IOException {
+		this(logger, addr, name, pubsub, nreactors, reusePort, AdmissionControl.unlimited());
+	}
+
+	public Server(Logger logger, InetSocketAddress addr, String name, PubSubHandler pubsub, int nreactors, boolean reusePort,
+			AdmissionControl admission) throws IOException {
+		this(logger, addr, name, pubsub, nreactors, reusePort, admission, null);
+	}
+
+	/* SUBMITs get verified on workers instead of the reactor threads, see Reactor */
+	public Server(Logger logger, InetSocketAddress addr, String name, PubSubHandler pubsub, int nreactors, boolean reusePort,
+			AdmissionControl admission, Executor workers) throws IOException {
+		if (nreactors < 1)
+			throw new IllegalArgumentException("Need at least one reactor, got "+nreactors);
+		this.logger = logger;
+
+		reactors = new Reactor[nreactors];
+		for (int i=0; i<nreactors; i++)
+			reactors[i] = new Reactor(logger, name, pubsub, admission, workers, "UDPCraft Reactor "+i);
+
+		SocketOption<Boolean> reusePortOption = reusePort ? reusePortOption() : null;
+		if (nreactors == 1) {
+			schs = new ServerSocketChannel[] { openListener(addr, null) };
+			reactors[0].listen(schs[0]);
+
+		} else if (reusePortOption != null) {
+			schs = new ServerSocketChannel[nreactors];
+			schs[0] = openListener(addr, reusePortOption);
+			/* Bind the others to wherever the first one ended up in case we were asked for an ephemeral port */
+			InetSocketAddress bound = (InetSocketAddress)schs[0].getLocalAddress();
+			for (int i=1; i<nreactors; i++)
+				schs[i] = openListener(bound, reusePortOption);
+			for (int i=0; i<nreactors; i++)
+				reactors[i].listen(schs[i]);
+
+		} else {
+			if (reusePort)
+				logger.log(Level.WARNING, "SO_REUSEPORT not supported on this platform, using a single acceptor");
+			schs = new ServerSocketChannel[] { ServerSocketChannel.open() };
+			schs[0].socket().bind(addr);
+			acceptor = new Thread(this, "UDPCraft Acceptor");
+		}
+	}
+
+	private static ServerSocketChannel openListener(InetSocketAddress addr, SocketOption<Boolean> reusePort) throws IOException {
+		ServerSocketChannel sch = ServerSocketChannel.open();
 		sch.configureBlocking(false);
+		if (reusePort != null)
+			sch.setOption(reusePort, true);
 		sch.socket().bind(addr);
-		sch.register(sel, SelectionKey.OP_ACCEPT);
+		return sch;
+	}
 
-		this.logger = logger;
-		this.name = name;
-		this.pubsub = pubsub;
-		runner = new Thread(this);
+	/* StandardSocketOptions.SO_REUSEPORT only exists since Java 9 and not on every platform, so look it up by name. Null
+	 * if there is no such thing. */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() throws IOException {
+		try (ServerSocketChannel sch = ServerSocketChannel.open()) {
+			for (SocketOption<?> opt : sch.supportedOptions())
+				if (opt.name().equals("SO_REUSEPORT") && opt.type() == Boolean.class)
+					return (SocketOption<Boolean>)opt;
+		}
+		return null;
 	}
-	
+
 	public void start() {
-		runner.start();
+		for (Reactor r : reactors)
+			r.start();
+		if (acceptor != null)
+			acceptor.start();
 	}
-	
+
 	public void stop() {
 		shouldStop = true;
-		sel.wakeup();
+		for (Reactor r : reactors)
+			r.stop();
+		/* This also kicks the acceptor out of accept() */
+		for (ServerSocketChannel sch : schs) {
+			try {
+				sch.close();
+			} catch (IOException ex) {}
+		}
 	}
-	
+
 	public SocketAddress getAddress() throws IOException {
-		return sch.getLocalAddress();
+		return schs[0].getLocalAddress();
 	}
 
+	/* Acceptor loop, only used with several reactors and no SO_REUSEPORT */
 	public void run() {
-		ByteBuffer fnord = ByteBuffer.allocate(MAX_LINE_LEN);
+		int next = 0;
 		while (!shouldStop) {
-			try { 
-				sel.select();
-
-				Iterator<SelectionKey> it=sel.selectedKeys().iterator();
-				while (it.hasNext()) {
-					final SelectionKey narf = it.next();
-					if (narf.isAcceptable()) {
-						logger.log(Level.INFO, "Accepting connection");
-						final SocketChannel ch = sch.accept(); /* We're only listening on one socket */
-						ch.configureBlocking(false);
-
-						SMTPHandler.ConnectionHandler hnd = new SMTPHandler.ConnectionHandler() {
-							public void reply(String r) {
-								try {
-									ByteBuffer frob = ByteBuffer.wrap(r.getBytes());
-									ch.write(frob);
-								} catch (IOException ex) {
-									try {
-										ch.close();
-									} catch (IOException ex1) {}
-									narf.cancel();
-								}
-							}
-							public void close() {
-								try {
-									ByteBuffer frob = ByteBuffer.wrap("221 Service closing transmission channel\r\n".getBytes());
-									ch.write(frob);
-								} catch (IOException ex) {}
-								try {
-									ch.close();
-								} catch (IOException ex) {
-								} finally {
-									narf.cancel();
-								}
-							}
-						};
-
-						/* Register chain of line segmentation and protocol handling */
-						ch.register(sel, SelectionKey.OP_READ, new LineBufferThing(new SMTPHandler(hnd, pubsub)));
-
-						/* Welcome our new friend. */
-						hnd.reply("220 "+name+" CrappySMTPd\r\n");
-					} else if(narf.isReadable()) {
-						SocketChannel ch = (SocketChannel)narf.channel();
-						try {
-							/* And here was I thinking java.io was bad. */
-							int nrd = ch.read(fnord);
-							if (nrd == -1) {
-								logger.log(Level.INFO, "Closing this end of connection closed on other end");
-								ch.close();
-								narf.cancel();
-							}
-
-							/* Call connection line segmentation */
-							((LineBufferThing)narf.attachment()).readLine(fnord);
-						} catch (BufferOverflowException ex) {
-							/* Ignore. */
-						} catch (IOException ex) {
-							ch.close();
-							narf.cancel();
-						} finally {
-							fnord.clear();
-						}
-					}
-					it.remove();
-				}
-			} catch(IOException ex) {
+			try {
+				SocketChannel ch = schs[0].accept();
+				logger.log(Level.INFO, "Accepting connection");
+				reactors[next].adopt(ch);
+				next = (next+1) % reactors.length;
+			} catch (AsynchronousCloseException ex) {
+				/* We're being stopped */
+			} catch (IOException ex) {
 				logger.log(Level.INFO, "Caught exception: "+ex.toString());
 			}
 		}
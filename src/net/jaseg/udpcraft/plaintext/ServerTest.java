@@ -1,17 +1,28 @@
 package net.jaseg.udpcraft.plaintext;
 
 import static org.hamcrest.core.StringStartsWith.startsWith;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import org.bouncycastle.crypto.params.KeyParameter;
@@ -20,10 +31,12 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import net.jaseg.udpcraft.PayloadCompressor;
 import net.jaseg.udpcraft.Portal;
 import net.jaseg.udpcraft.PortalIndex;
 import net.jaseg.udpcraft.PubSubHandler;
@@ -135,4 +148,276 @@ public class ServerTest {
 		s.close();
 		server.stop();
 	}
+	
+	@Test
+	public void testPipelining() throws IOException {
+		server.start();
+		Socket s = new Socket();
+		s.connect(server.getAddress());
+		
+		OutputStream os = s.getOutputStream();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		assertThat(reader.readLine(), startsWith("220 testserver"));
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<1000; i++)
+			sb.append("SUBSCRIBE testportal\r\n");
+		sb.append("QUIT\r\n");
+		os.write(sb.toString().getBytes());
+
+		for (int i=0; i<1000; i++)
+			assertThat(reader.readLine(), startsWith("250 OK"));
+		assertThat(reader.readLine(), startsWith("221 "));
+		verify(mux, times(1000)).subscribe(eq("testportal"), (String)isNull(), any());
+		
+		s.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testMultiReactor() throws IOException {
+		testMultiReactorImpl(false);
+		testMultiReactorImpl(true);
+	}
+	
+	private void testMultiReactorImpl(boolean reusePort) throws IOException {
+		server = new Server(Logger.getAnonymousLogger(), new InetSocketAddress("localhost", 0), "testserver", mux, 4, reusePort);
+		server.start();
+		Socket sockets[] = new Socket[16];
+		for (int i=0; i<sockets.length; i++) {
+			sockets[i] = new Socket();
+			sockets[i].connect(server.getAddress());
+		}
+		
+		for (Socket s : sockets) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			assertThat(reader.readLine(), startsWith("220 testserver"));
+			s.getOutputStream().write("SUBSCRIBE testportal\r\n".getBytes());
+			assertThat(reader.readLine(), startsWith("250 OK"));
+			s.close();
+		}
+		
+		server.stop();
+	}
+	
+	private void writeFrame(OutputStream os, byte opcode, String portal, byte body[]) throws IOException {
+		ByteBuffer buf = BinaryHandler.encodeFrame(opcode, portal, body.length);
+		buf.put(body);
+		os.write(buf.array());
+	}
+	
+	private int readReply(DataInputStream is) throws IOException {
+		byte frame[] = new byte[is.readInt()];
+		is.readFully(frame);
+		assertEquals(BinaryHandler.OP_REPLY, frame[0]);
+		return ByteBuffer.wrap(frame, 2 + frame[1], 2).getShort();
+	}
+	
+	@Test
+	public void testBinaryProtocol() throws IOException {
+		server.start();
+		Socket s = new Socket();
+		s.connect(server.getAddress());
+		
+		OutputStream os = s.getOutputStream();
+		DataInputStream is = new DataInputStream(s.getInputStream());
+		while (is.read() != '\n')
+			; /* Skip the greeting */
+		
+		os.write(BinaryHandler.MAGIC);
+		writeFrame(os, BinaryHandler.OP_SUBSCRIBE, "testportal", new byte[0]);
+		assertEquals(250, readReply(is));
+		verify(mux).subscribe(eq("testportal"), (String)isNull(), any());
+		
+		writeFrame(os, BinaryHandler.OP_SUBMIT, "testportal", "fnord".getBytes());
+		assertEquals(250, readReply(is));
+		verify(mux).submit(eq("testportal"), eq(ByteBuffer.wrap("fnord".getBytes())));
+		
+		Mockito.doThrow(new IllegalArgumentException("test")).when(mux).unsubscribe(any(), any());
+		writeFrame(os, BinaryHandler.OP_UNSUBSCRIBE, "testportal", new byte[0]);
+		assertEquals(550, readReply(is));
+		
+		writeFrame(os, BinaryHandler.OP_QUIT, "", new byte[0]);
+		assertEquals(221, readReply(is));
+		
+		s.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testSubmitCrash() throws IOException {
+		Mockito.doThrow(new IllegalStateException("test")).when(mux).submit(any(), any(byte[].class));
+		Mockito.doThrow(new IllegalStateException("test")).when(mux).submit(any(), any(ByteBuffer.class));
+		server.start();
+		
+		Socket s = new Socket();
+		s.connect(server.getAddress());
+		BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		assertThat(reader.readLine(), startsWith("220 testserver"));
+		s.getOutputStream().write("SUBMIT testportal Zm5vcmQ=\r\nNOOP\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("550 Internal error"));
+		assertThat(reader.readLine(), startsWith("250 OK"));
+		
+		Socket b = new Socket();
+		b.connect(server.getAddress());
+		OutputStream os = b.getOutputStream();
+		DataInputStream is = new DataInputStream(b.getInputStream());
+		while (is.read() != '\n')
+			; /* Skip the greeting */
+		os.write(BinaryHandler.MAGIC);
+		writeFrame(os, BinaryHandler.OP_SUBMIT, "testportal", "fnord".getBytes());
+		assertEquals(550, readReply(is));
+		
+		/* The reactor is still around for everybody else */
+		s.getOutputStream().write("NOOP\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("250 OK"));
+		
+		s.close();
+		b.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testBatchSubmit() throws IOException {
+		server.start();
+		Socket s = new Socket();
+		s.connect(server.getAddress());
+		
+		OutputStream os = s.getOutputStream();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		assertThat(reader.readLine(), startsWith("220 testserver"));
+		
+		when(mux.submitBatch(any(), any())).thenReturn(new ArrayList<Integer>());
+		os.write("BSUBMIT testportal Zm5vcmQ= Zm5vcmQ= Zm5vcmQ=\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("250 BATCH 3/3"));
+		verify(mux).submitBatch(eq("testportal"), any());
+		
+		when(mux.submitBatch(any(), any())).thenReturn(Arrays.asList(0, 2));
+		os.write("BSUBMIT testportal Zm5vcmQ= Zm5vcmQ= Zm5vcmQ=\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("250 BATCH 1/3 FAILED 0,2"));
+		
+		os.write("BSUBMIT testportal\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("550 "));
+		
+		s.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testAdmission() throws IOException {
+		server = new Server(Logger.getAnonymousLogger(), new InetSocketAddress("localhost", 0), "testserver", mux, 1, false,
+				new AdmissionControl(0, 1, 200, 0));
+		server.start();
+		Socket s = new Socket();
+		s.connect(server.getAddress());
+		BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		assertThat(reader.readLine(), startsWith("220 testserver"));
+		
+		Socket s2 = new Socket();
+		s2.connect(server.getAddress());
+		BufferedReader reader2 = new BufferedReader(new InputStreamReader(s2.getInputStream()));
+		assertThat(reader2.readLine(), startsWith("421 testserver"));
+		assertEquals(null, reader2.readLine());
+		s2.close();
+		
+		/* Never says anything, so it gets kicked after the handshake timeout, freeing up the slot */
+		assertThat(reader.readLine(), startsWith("421 testserver Handshake timeout"));
+		assertEquals(null, reader.readLine());
+		s.close();
+		
+		s = new Socket();
+		s.connect(server.getAddress());
+		reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		assertThat(reader.readLine(), startsWith("220 testserver"));
+		s.getOutputStream().write("SUBSCRIBE testportal\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("250 OK"));
+		s.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testCompression() throws IOException {
+		server.start();
+		Socket s = new Socket();
+		s.connect(server.getAddress());
+		
+		OutputStream os = s.getOutputStream();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		assertThat(reader.readLine(), startsWith("220 testserver"));
+		
+		os.write("COMPRESS LZMA\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("550 "));
+		os.write("COMPRESS DEFLATE\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("250 OK"));
+		
+		String payload = Base64.getEncoder().encodeToString(PayloadCompressor.compress("fnord".getBytes()));
+		os.write(("SUBMIT testportal "+payload+"\r\n").getBytes());
+		assertThat(reader.readLine(), startsWith("250 OK"));
+		verify(mux).submit(eq("testportal"), eq("fnord".getBytes()));
+		
+		/* Uncompressed garbage is rejected now */
+		os.write("SUBMIT testportal Zm5vcmQ=\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("550 "));
+		
+		s.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testWorkers() throws IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(4);
+		server = new Server(Logger.getAnonymousLogger(), new InetSocketAddress("localhost", 0), "testserver", mux, 1, false,
+				AdmissionControl.unlimited(), workers);
+		server.start();
+		Socket s = new Socket();
+		s.connect(server.getAddress());
+		
+		OutputStream os = s.getOutputStream();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		assertThat(reader.readLine(), startsWith("220 testserver"));
+		
+		/* The slow one's reply still has to come first */
+		doAnswer(inv -> {
+			Thread.sleep(200);
+			throw new IllegalArgumentException("Invalid signature");
+		}).when(mux).submit(eq("slowportal"), any(byte[].class));
+		os.write("SUBMIT slowportal Zm5vcmQ=\r\nSUBMIT testportal Zm5vcmQ=\r\nNOOP\r\n".getBytes());
+		assertThat(reader.readLine(), startsWith("550 "));
+		assertThat(reader.readLine(), startsWith("250 OK"));
+		assertThat(reader.readLine(), startsWith("250 OK"));
+		InOrder order = inOrder(mux);
+		order.verify(mux).submit(eq("slowportal"), eq("fnord".getBytes()));
+		order.verify(mux).submit(eq("testportal"), eq("fnord".getBytes()));
+		
+		s.close();
+		server.stop();
+		workers.shutdown();
+	}
+
+	@Test
+	public void testRegisterFailureCloses() throws Exception {
+		AdmissionControl admission = new AdmissionControl(0, 1, 0, 0);
+		Reactor reactor = new Reactor(Logger.getAnonymousLogger(), "testserver", mux, admission, null, "test reactor");
+		reactor.start();
+
+		/* Peer already reset before we could look at it */
+		SocketChannel reset = mock(SocketChannel.class,
+				withSettings().useConstructor(SelectorProvider.provider()).defaultAnswer(CALLS_REAL_METHODS));
+		doThrow(new IOException("Connection reset by peer")).when(reset).getRemoteAddress();
+		reactor.adopt(reset);
+
+		/* Refused, and the peer is gone before it gets its 421 */
+		InetSocketAddress peer = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1234);
+		assertEquals(null, admission.admit(peer.getAddress()));
+		SocketChannel refused = mock(SocketChannel.class,
+				withSettings().useConstructor(SelectorProvider.provider()).defaultAnswer(CALLS_REAL_METHODS));
+		doReturn(peer).when(refused).getRemoteAddress();
+		doThrow(new IOException("Broken pipe")).when(refused).write(any(ByteBuffer.class));
+		reactor.adopt(refused);
+
+		while (reset.isOpen() || refused.isOpen())
+			Thread.sleep(10);
+		assertEquals(1, admission.connections());
+		reactor.stop();
+	}
 }
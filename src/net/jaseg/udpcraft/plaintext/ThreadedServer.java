@@ -0,0 +1,128 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jaseg.udpcraft.PubSubHandler;
+import net.jaseg.udpcraft.Transport;
+
+/* Thread-per-connection alternative to the NIO Server speaking the exact same protocols. Each connection runs its
+ * protocol handler on its own thread using plain blocking I/O, so a slow pubsub.submit() only ever stalls the client
+ * that sent it. On a JVM with virtual threads those threads are virtual, otherwise we fall back to a cached pool of
+ * ordinary daemon threads. */
+public class ThreadedServer implements Transport, Runnable {
+	private ServerSocketChannel sch;
+	private volatile boolean shouldStop = false;
+	private Thread acceptor;
+	private ExecutorService executor;
+
+	private Logger logger;
+	private String name;
+	private PubSubHandler pubsub;
+
+	public ThreadedServer(Logger logger, InetSocketAddress addr, String name, PubSubHandler pubsub) throws IOException {
+		sch = ServerSocketChannel.open();
+		sch.socket().bind(addr);
+
+		this.logger = logger;
+		this.name = name;
+		this.pubsub = pubsub;
+		executor = newConnectionExecutor(logger);
+		acceptor = new Thread(this, "UDPCraft Acceptor");
+	}
+
+	private static ExecutorService newConnectionExecutor(Logger logger) {
+		try {
+			/* Executors.newVirtualThreadPerTaskExecutor() only exists starting with Java 21 */
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			logger.log(Level.INFO, "No virtual threads on this JVM, using platform threads per connection");
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "UDPCraft Connection");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	public void start() {
+		acceptor.start();
+	}
+
+	public void stop() {
+		shouldStop = true;
+		try {
+			sch.close();
+		} catch (IOException ex) {}
+		executor.shutdownNow();
+	}
+
+	public SocketAddress getAddress() throws IOException {
+		return sch.getLocalAddress();
+	}
+
+	public void run() {
+		while (!shouldStop) {
+			try {
+				final SocketChannel ch = sch.accept();
+				logger.log(Level.INFO, "Accepting connection");
+				final BlockingConnection conn = new BlockingConnection(ch);
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							serve(conn);
+						}
+					});
+					executor.execute(new Runnable() {
+						public void run() {
+							conn.writeLoop();
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					conn.closeNow();
+				}
+			} catch (AsynchronousCloseException ex) {
+				/* We're being stopped */
+			} catch (IOException ex) {
+				logger.log(Level.INFO, "Caught exception: "+ex.toString());
+			}
+		}
+	}
+
+	private void serve(BlockingConnection conn) {
+		SocketChannel ch = conn.channel();
+		/* Register chain of line segmentation and protocol handling */
+		ProtocolSniffer proto = new ProtocolSniffer(logger, conn, pubsub);
+
+		/* Welcome our new friend. */
+		conn.reply("220 "+name+" CrappySMTPd\r\n");
+
+		try {
+			while (!conn.isClosed()) {
+				if (ch.read(proto.buffer()) == -1) {
+					logger.log(Level.INFO, "Closing this end of connection closed on other end");
+					break;
+				}
+				proto.process();
+			}
+		} catch (IOException ex) {
+		} finally {
+			/* If the client said QUIT the writer thread closes the socket once the goodbye is out */
+			if (!conn.isClosing())
+				conn.closeNow();
+			proto.close();
+		}
+	}
+}
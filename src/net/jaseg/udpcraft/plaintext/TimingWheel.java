@@ -0,0 +1,106 @@
+package net.jaseg.udpcraft.plaintext;
+
+import java.util.List;
+
+/* Hashed timing wheel a la Varghese & Lauck. Timeouts are hashed by their deadline tick into one of a fixed number of
+ * slots, each a doubly linked list, so scheduling and cancelling are O(1) and advancing the clock only looks at the
+ * slots whose ticks have passed. Timeouts further out than one revolution simply stay in their slot until their tick
+ * comes round.
+ *
+ * Not thread safe, everything happens on the owning reactor's thread. Times are in milliseconds on whatever monotonic
+ * clock the caller uses. */
+class TimingWheel<T> {
+	static class Timeout<T> {
+		final T item;
+		private long tick;
+		private Timeout<T> prev, next;
+		private boolean scheduled;
+
+		private Timeout(T item) {
+			this.item = item;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout<T> slots[];
+	private final int mask;
+	private final long origin;
+	private long current = 0; /* last tick we processed */
+	private int size = 0;
+
+	@SuppressWarnings("unchecked")
+	TimingWheel(long tickMillis, int nslots, long now) {
+		if (tickMillis < 1 || Integer.bitCount(nslots) != 1)
+			throw new IllegalArgumentException("Need a positive tick and a power of two slots");
+		this.tickMillis = tickMillis;
+		slots = (Timeout<T>[])new Timeout<?>[nslots];
+		mask = nslots-1;
+		origin = now;
+	}
+
+	long tickMillis() {
+		return tickMillis;
+	}
+
+	int size() {
+		return size;
+	}
+
+	Timeout<T> schedule(T item, long deadline) {
+		Timeout<T> t = new Timeout<T>(item);
+		reschedule(t, deadline);
+		return t;
+	}
+
+	/* Moves an existing timeout to a new deadline. Deadlines in the past fire on the next tick. */
+	void reschedule(Timeout<T> t, long deadline) {
+		cancel(t);
+		long tick = (deadline - origin + tickMillis - 1) / tickMillis;
+		t.tick = Math.max(tick, current+1);
+
+		int slot = (int)(t.tick & mask);
+		t.prev = null;
+		t.next = slots[slot];
+		if (t.next != null)
+			t.next.prev = t;
+		slots[slot] = t;
+		t.scheduled = true;
+		size++;
+	}
+
+	void cancel(Timeout<T> t) {
+		if (t == null || !t.scheduled)
+			return;
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			slots[(int)(t.tick & mask)] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.scheduled = false;
+		size--;
+	}
+
+	/* Removes every timeout whose deadline is at or before now and appends its item to expired */
+	void advance(long now, List<T> expired) {
+		long target = (now - origin) / tickMillis;
+		if (target <= current)
+			return;
+
+		/* If we fell behind by more than a revolution every slot gets looked at exactly once */
+		long n = Math.min(target - current, slots.length);
+		for (long i=1; i<=n; i++) {
+			Timeout<T> t = slots[(int)((current+i) & mask)];
+			while (t != null) {
+				Timeout<T> next = t.next;
+				if (t.tick <= target) {
+					cancel(t);
+					expired.add(t.item);
+				}
+				t = next;
+			}
+		}
+		current = target;
+	}
+}
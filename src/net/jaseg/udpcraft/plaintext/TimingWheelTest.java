@@ -0,0 +1,81 @@
+package net.jaseg.udpcraft.plaintext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+	private TimingWheel<String> wheel;
+	private List<String> expired;
+
+	@Before
+	public void setUp() {
+		wheel = new TimingWheel<String>(10, 8, 1000);
+		expired = new ArrayList<String>();
+	}
+
+	@Test
+	public void testExpiry() {
+		wheel.schedule("a", 1025);
+		wheel.schedule("b", 1050);
+		assertEquals(2, wheel.size());
+
+		wheel.advance(1020, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advance(1030, expired);
+		assertEquals(Arrays.asList("a"), expired);
+		wheel.advance(1050, expired);
+		assertEquals(Arrays.asList("a", "b"), expired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testMultipleRevolutions() {
+		/* 8 slots of 10ms, so this one goes round the wheel a few times before it's due */
+		wheel.schedule("far", 1305);
+		wheel.schedule("near", 1015);
+		for (long t=1000; t<1310; t+=10) {
+			wheel.advance(t, expired);
+			assertEquals(t >= 1020 ? 1 : 0, expired.size());
+		}
+		wheel.advance(1310, expired);
+		assertEquals(Arrays.asList("near", "far"), expired);
+	}
+
+	@Test
+	public void testFallingBehind() {
+		wheel.schedule("a", 1100);
+		wheel.schedule("b", 1500);
+		wheel.schedule("c", 5000);
+		wheel.advance(2000, expired);
+		assertEquals(2, expired.size());
+		assertTrue(expired.containsAll(Arrays.asList("a", "b")));
+		assertEquals(1, wheel.size());
+	}
+
+	@Test
+	public void testCancelReschedule() {
+		TimingWheel.Timeout<String> a = wheel.schedule("a", 1020);
+		TimingWheel.Timeout<String> b = wheel.schedule("b", 1020);
+		wheel.cancel(a);
+		wheel.cancel(a);
+		wheel.reschedule(b, 1200);
+		assertEquals(1, wheel.size());
+
+		wheel.advance(1100, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advance(1200, expired);
+		assertEquals(Arrays.asList("b"), expired);
+
+		/* Deadlines in the past fire on the next tick */
+		wheel.schedule("late", 900);
+		wheel.advance(1210, expired);
+		assertEquals(Arrays.asList("b", "late"), expired);
+	}
+}